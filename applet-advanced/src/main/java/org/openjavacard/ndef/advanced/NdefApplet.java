@@ -73,6 +73,8 @@ public final class NdefApplet extends Applet {
     private static final byte AD_TAG_NDEF_DATA_INITIAL = (byte)0x80;
     private static final byte AD_TAG_NDEF_DATA_ACCESS  = (byte)0x81;
     private static final byte AD_TAG_NDEF_DATA_SIZE    = (byte)0x82;
+    /* Number of install parameter tags, counting from AD_TAG_NDEF_DATA_INITIAL */
+    private static final byte AD_NUM_TAGS = 3;
 
     /* Constants related to capability container */
     private static final byte CC_LEN_HEADER = 7;
@@ -151,6 +153,15 @@ public final class NdefApplet extends Applet {
     /** Number of transient variables */
     private static final short NUM_VARS = (short)1;
 
+    /**
+     * Index of install parameters, shared by all instances
+     *
+     * This is only used while installing, where the
+     * CLEAR_ON_DESELECT variables are not accessible
+     * because the applet has not been selected yet.
+     */
+    private static short[] installIndex;
+
     /** NDEF capability file contents */
     private final byte[] capsFile;
     /** NDEF data file contents */
@@ -221,13 +232,18 @@ public final class NdefApplet extends Applet {
 
         // process application data
         if(FEATURE_INSTALL_PARAMETERS) {
-            // check TLV consistency
-            if (!UtilTLV.isTLVconsistent(buf, off, len)) {
+            // check TLV consistency and index tags in one pass,
+            // allocating the index only for the first instance
+            if(installIndex == null) {
+                installIndex = JCSystem.makeTransientShortArray(AD_NUM_TAGS, JCSystem.CLEAR_ON_RESET);
+            }
+            short[] tags = installIndex;
+            if (!UtilTLV.indexTags(buf, off, len, AD_TAG_NDEF_DATA_INITIAL, tags)) {
                 ISOException.throwIt(ISO7816.SW_DATA_INVALID);
             }
 
             // DATA INITIAL
-            short initTag = UtilTLV.findTag(buf, off, len, AD_TAG_NDEF_DATA_INITIAL);
+            short initTag = getIndexedTag(tags, AD_TAG_NDEF_DATA_INITIAL);
             if (initTag >= 0) {
                 initBuf = buf;
                 initLen = UtilTLV.decodeLengthField(buf, (short) (initTag + 1));
@@ -239,7 +255,7 @@ public final class NdefApplet extends Applet {
             }
 
             // DATA ACCESS
-            short tagAccess = UtilTLV.findTag(buf, off, len, AD_TAG_NDEF_DATA_ACCESS);
+            short tagAccess = getIndexedTag(tags, AD_TAG_NDEF_DATA_ACCESS);
             if (tagAccess >= 0) {
                 short accessLen = UtilTLV.decodeLengthField(buf, (short) (tagAccess + 1));
                 if (accessLen != 2) {
@@ -250,7 +266,7 @@ public final class NdefApplet extends Applet {
             }
 
             // DATA SIZE
-            short tagSize = UtilTLV.findTag(buf, off, len, AD_TAG_NDEF_DATA_SIZE);
+            short tagSize = getIndexedTag(tags, AD_TAG_NDEF_DATA_SIZE);
             if (tagSize >= 0) {
                 short sizeLen = UtilTLV.decodeLengthField(buf, (short) (tagSize + 1));
                 if (sizeLen != 2) {
@@ -277,6 +293,17 @@ public final class NdefApplet extends Applet {
         dataFile = makeData(initSize, initBuf, initOff, initLen);
     }
 
+    /**
+     * Look up an install parameter in the tag index
+     *
+     * @param tags index as prepared by UtilTLV.indexTags()
+     * @param tag to look up
+     * @return position of the first occurrence, or -1 if not found
+     */
+    private static short getIndexedTag(short[] tags, byte tag) {
+        return tags[(short)(tag - AD_TAG_NDEF_DATA_INITIAL)];
+    }
+
     /**
      * Create and initialize the CAPABILITIES file
      *
@@ -94,6 +94,49 @@ public final class UtilTLV {
         return (pos == (short)(offset+length));
     }
 
+    /**
+     * \brief Check the consistency of the TLV structure and index its tags in one pass.
+     *
+     * Positions of tags from tagBase up to tagBase+index.length-1 are recorded
+     * in the index, so that they can be looked up without searching the structure
+     * again. Only the first occurrence of each tag is recorded, absent tags are
+     * recorded as -1.
+     *
+     * \param tlv The array containing the TLV-encoded object to index.
+     *
+     * \param offset The position at which the TLV structure begins.
+     *
+     * \param length The length of the TLV structure.
+     *
+     * \param tagBase The first tag to record, corresponding to index[0].
+     *
+     * \param index The array receiving the tag positions.
+     *
+     * \return True if the TLV structure is valid, else false.
+     */
+    public static boolean indexTags(byte[] tlv, short offset, short length, byte tagBase, short[] index) {
+        short pos = offset;
+        short len;
+        short slot;
+
+        for(slot = 0; slot < (short)index.length; slot++) {
+            index[slot] = -1;
+        }
+
+        while(pos < (short)(length+offset-1)) {
+            slot = (short)((tlv[pos] & 0xFF) - (tagBase & 0xFF));
+            if(slot >= 0 && slot < (short)index.length && index[slot] < 0) {
+                index[slot] = pos;
+            }
+            len = decodeLengthField(tlv, (short)(pos+1));
+            if(len < 0) {
+                return false;
+            }
+            pos += 1 + getLengthFieldLength(len) + len;
+        }
+        return (pos == (short)(offset+length));
+    }
+
     /**
      * \brief Decode the length field of a TLV-entry.
      *
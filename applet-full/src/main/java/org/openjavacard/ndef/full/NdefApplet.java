@@ -25,6 +25,7 @@ import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
+import javacardx.apdu.ExtendedLength;
 
 /**
  * \brief Applet implementing an NDEF type 4 tag
@@ -32,30 +33,55 @@ import javacard.framework.Util;
  * Implemented to comply with:
  *   NFC Forum
  *   Type 4 Tag Operation Specification
- *   Version 2.0
+ *   Version 2.0 and Version 3.0
  *
  * Conformity remarks:
  *   1. The NDEF data file can be up to 32767 bytes in size,
- *      corresponding to the specification maximum.
+ *      corresponding to the specification maximum of version 2.0.
+ *      Larger files are served using mapping version 3.0 with an
+ *      extended NDEF file control TLV, when configured to do so.
  *   2. No file control information (FCI) is returned in SELECT responses
  *      as allowed by specification requirement RQ_T4T_NDA_034.
  *   3. Proprietary access modes are being used for custom features,
  *      however they are not exposed in the capability descriptor.
- *   4. Proprietary files are not being used.
+ *   4. Proprietary files can be configured, they are announced
+ *      using proprietary file control TLVs and hold raw data.
+ *   5. Extended length APDUs are supported for READ BINARY
+ *      and UPDATE BINARY when configured to advertise larger
+ *      sizes, short APDUs remain usable and are the default.
+ *   6. Additional NDEF data files can be configured, each with
+ *      its own NDEF file control TLV in the capability container.
+ *   7. Regions of the NDEF data file can be configured to mirror
+ *      a read counter and a UID as ASCII hex when read. These are
+ *      overlaid on the stored data and never written to the file.
  *
  */
-public final class NdefApplet extends Applet {
+public final class NdefApplet extends Applet implements ExtendedLength {
 
     /* Instructions */
     private static final byte INS_SELECT        = ISO7816.INS_SELECT;
     private static final byte INS_READ_BINARY   = (byte)0xB0;
     private static final byte INS_UPDATE_BINARY = (byte)0xD6;
+    private static final byte INS_READ_BINARY_ODO   = (byte)0xB1;
+    private static final byte INS_UPDATE_BINARY_ODO = (byte)0xD7;
+    private static final byte INS_GET_RESPONSE  = (byte)0xC0;
 
     /* File IDs */
-    private static final short FILEID_NONE              = (short)0x0000;
     private static final short FILEID_NDEF_CAPABILITIES = (short)0xE103;
     private static final short FILEID_NDEF_DATA         = (short)0xE104;
 
+    /* File IDs reserved by ISO 7816-4 and the NDEF specification */
+    private static final short FILEID_RESERVED_NONE     = (short)0x0000;
+    private static final short FILEID_RESERVED_NDEF_V1  = (short)0xE102;
+    private static final short FILEID_RESERVED_MF       = (short)0x3F00;
+    private static final short FILEID_RESERVED_RFU     = (short)0x3FFF;
+    private static final short FILEID_RESERVED_INVALID  = (short)0xFFFF;
+
+    /* File indices in the file table */
+    private static final byte FILE_NONE              = (byte)-1;
+    private static final byte FILE_NDEF_CAPABILITIES = (byte)0;
+    private static final byte FILE_NDEF_DATA         = (byte)1;
+
     /* File access specifications */
     private static final byte FILE_ACCESS_OPEN = (byte)0x00;
     private static final byte FILE_ACCESS_NONE = (byte)0xFF;
@@ -66,19 +92,52 @@ public final class NdefApplet extends Applet {
     private static final byte SELECT_P1_BY_FILEID     = (byte)0x00;
     private static final byte SELECT_P2_FIRST_OR_ONLY = (byte)0x0C;
 
+    /* Parameters for READ/UPDATE BINARY with short file identifier */
+    private static final byte BINARY_P1_SFI_FLAG = (byte)0x80;
+    private static final byte BINARY_P1_SFI_RFU  = (byte)0x60;
+    private static final byte BINARY_P1_SFI_MASK = (byte)0x1F;
+
     /* NDEF mapping version (specification 2.0) */
     private static final byte NDEF_MAPPING_VERSION = (byte)0x20;
+    /* NDEF mapping version (specification 3.0) */
+    private static final byte NDEF_MAPPING_VERSION_3 = (byte)0x30;
+
+    /* Data objects used by READ/UPDATE BINARY with ODO */
+    private static final byte ODO_TAG_OFFSET = (byte)0x54;
+    private static final byte ODO_LEN_OFFSET = 3;
+    private static final byte DDO_TAG_DATA   = (byte)0x53;
 
     /* Install parameter tags */
     private static final byte AD_TAG_NDEF_DATA_INITIAL = (byte)0x80;
     private static final byte AD_TAG_NDEF_DATA_ACCESS  = (byte)0x81;
     private static final byte AD_TAG_NDEF_DATA_SIZE    = (byte)0x82;
+    private static final byte AD_TAG_NDEF_WRITE_MODE   = (byte)0x83;
+    private static final byte AD_TAG_NDEF_DATA_SLOTS   = (byte)0x84;
+    private static final byte AD_TAG_NDEF_FILE         = (byte)0x85;
+    private static final byte AD_TAG_PROPRIETARY_FILE  = (byte)0x86;
+    private static final byte AD_TAG_NDEF_MAX_SIZES    = (byte)0x87;
+    private static final byte AD_TAG_NDEF_MIRROR       = (byte)0x88;
+    /* Number of install parameter tags, counting from AD_TAG_NDEF_DATA_INITIAL */
+    private static final byte AD_NUM_TAGS = 9;
+
+    /* Maximum size value requesting adaptation to the transport */
+    private static final short MAX_SIZE_ADAPTIVE = 0;
+
+    /* Write modes for the data file */
+    private static final byte WRITE_MODE_DIRECT = (byte)0x00;
+    private static final byte WRITE_MODE_STAGED = (byte)0x01;
+    private static final byte WRITE_MODE_NON_ATOMIC = (byte)0x02;
 
     /* Constants related to capability container */
     private static final byte CC_LEN_HEADER = 7;
+    private static final byte CC_OFF_MAX_READ  = 0x03;
+    private static final byte CC_OFF_MAX_WRITE = 0x05;
     private static final byte CC_OFF_NDEF_FILE_CONTROL = 0x07;
     private static final byte CC_TAG_NDEF_FILE_CONTROL = 0x04;
     private static final byte CC_LEN_NDEF_FILE_CONTROL = 6;
+    private static final byte CC_TAG_PROPRIETARY_FILE_CONTROL = 0x05;
+    private static final byte CC_TAG_EXTENDED_NDEF_FILE_CONTROL = 0x06;
+    private static final byte CC_LEN_EXTENDED_NDEF_FILE_CONTROL = 8;
 
     /* Constants related to file control data in capabilities */
     private static final byte FC_OFF_FILE_ID      = 0x00;
@@ -86,6 +145,29 @@ public final class NdefApplet extends Applet {
     private static final byte FC_OFF_READ_ACCESS  = 0x04;
     private static final byte FC_OFF_WRITE_ACCESS = 0x05;
 
+    /* Constants related to extended file control data in capabilities */
+    private static final byte EFC_OFF_FILE_ID      = 0x00;
+    private static final byte EFC_OFF_SIZE         = 0x02;
+    private static final byte EFC_OFF_READ_ACCESS  = 0x06;
+    private static final byte EFC_OFF_WRITE_ACCESS = 0x07;
+
+    /* Constants related to segmented data storage */
+    private static final byte  DATA_SEGMENT_SHIFT = 14;
+    private static final short DATA_SEGMENT_SIZE  = (short)0x4000;
+    private static final short DATA_SEGMENT_MASK  = (short)0x3FFF;
+
+    /* Constants related to mirroring */
+    private static final short MIRROR_NONE         = (short)0xFFFF;
+    private static final byte  MIRROR_COUNTER_SIZE = 3;
+    private static final byte  MIRROR_OFF_FILE     = 0;
+    private static final byte  MIRROR_OFF_TEXT     = 1;
+    private static final byte  MIRROR_OFF_LENGTH   = 2;
+    private static final byte  MIRROR_ENTRY_SIZE   = 3;
+    private static final byte  MIRROR_TEXT_COUNTER = MIRROR_COUNTER_SIZE;
+    private static final byte  MIRROR_TEXT_UID     = 3 * MIRROR_COUNTER_SIZE;
+    private static final byte  MIRROR_READY_COUNTER = 1;
+    private static final byte  MIRROR_READY_UID     = 2;
+
     /**
      * Configuration: support for writing
      *
@@ -116,15 +198,258 @@ public final class NdefApplet extends Applet {
     private static final boolean FEATURE_ADVANCED_ACCESS_CONTROL = true;
 
     /**
-     * Configuration: maximum read block size
+     * Configuration: support for extended length APDUs
+     *
+     * If enabled the applet accepts READ BINARY and UPDATE
+     * BINARY commands with extended length fields, and the
+     * maximum read and write sizes can be raised up to the
+     * extended limits using install parameters.
+     *
+     * The short sizes are still advertised by default, since
+     * hosts derive their command sizes from the capability
+     * container and not all readers handle extended APDUs.
+     * Adaptive sizes use the extended limits on contact T=1.
+     */
+    private static final boolean FEATURE_EXTENDED_LENGTH = true;
+
+    /**
+     * Configuration: support for mapping version 3.0
+     *
+     * If enabled the data file can be configured to be
+     * larger than 32767 bytes. Such a file will be announced
+     * using an extended NDEF file control TLV and can be
+     * accessed using READ/UPDATE BINARY with offset data
+     * objects. Its length prefix (ENLEN) is four bytes long.
+     */
+    private static final boolean FEATURE_MAPPING_3 = true;
+
+    /**
+     * Configuration: support for staged writing
+     *
+     * If enabled the data file can be configured to stage
+     * writes in a transient buffer of the same size. Staging
+     * begins when the host clears the length field, as is done
+     * at the start of the standard write sequence. The buffer
+     * is written back in one pass when the host writes the
+     * length field again at the end of the sequence. A length
+     * of zero commits an empty file, so erasing takes a second
+     * write of a zero length field.
+     *
+     * Reads are served from the buffer while staging, so the
+     * host sees the cleared length field and its own writes.
+     * Uncommitted data is lost on deselection, leaving the
+     * previous contents of the data file intact.
+     */
+    private static final boolean FEATURE_WRITE_STAGING = true;
+
+    /**
+     * Configuration: support for non-atomic writing
+     *
+     * If enabled the data file can be configured to write
+     * data without transaction protection while its length
+     * field is zero, relying on the standard write sequence
+     * for consistency. Writes to the length field and writes
+     * to a file with non-zero length remain atomic.
+     *
+     * A persistent marker is kept while non-atomic writes
+     * are pending. If it is still set on the next selection
+     * the write sequence has been torn. Its length field
+     * is then cleared, leaving partial data unreachable.
+     */
+    private static final boolean FEATURE_WRITE_NON_ATOMIC = true;
+
+    /**
+     * Configuration: support for wear leveling
+     *
+     * If enabled the data file can be configured to be backed
+     * by several slots of storage. Each write sequence started
+     * by clearing the length field goes to the next slot, which
+     * becomes the active slot when the length field is written
+     * again, even if it is written as zero to erase the file.
+     * This spreads writes over all slots and keeps the previous
+     * contents intact until the new ones are complete.
+     *
+     * Only data written during the sequence is valid in the
+     * new slot, as is the case for the standard write sequence.
+     */
+    private static final boolean FEATURE_WEAR_LEVELING = true;
+
+    /**
+     * Configuration: support for multiple data files
+     *
+     * If enabled additional NDEF data files can be configured
+     * using install parameters. Each of them gets its own file
+     * control TLV in the capability container, its own size
+     * and its own access policies.
+     *
+     * Additional files always use direct writing with
+     * a two-byte length field, as do files of version 2.0.
+     */
+    private static final boolean FEATURE_MULTIPLE_FILES = true;
+
+    /**
+     * Configuration: support for short file identifiers
+     *
+     * If enabled READ BINARY and UPDATE BINARY accept a short
+     * file identifier in P1, allowing hosts to access a file
+     * without selecting it first. The file is selected as a
+     * side effect, as prescribed by ISO 7816-4.
+     *
+     * The short file identifier of each file is given by the
+     * lowest five bits of its file ID, so the CC is at 3 and
+     * the data file is at 4. Files sharing these bits are
+     * found in table order. Identifier 0 refers to the
+     * currently selected file.
+     */
+    private static final boolean FEATURE_SHORT_FILE_IDS = true;
+
+    /**
+     * Configuration: support for command chaining
+     *
+     * If enabled UPDATE BINARY accepts command chaining as
+     * indicated by bit 5 of CLA. Data of the chained commands
+     * is collected in a transient buffer of NDEF_MAX_CHAINED
+     * bytes and written in one pass on the last command of
+     * the chain, which must use the same P1 and P2.
+     *
+     * This allows large writes on hosts and cards without
+     * extended length support.
+     */
+    private static final boolean FEATURE_COMMAND_CHAINING = true;
+
+    /**
+     * Configuration: support for response chaining
+     *
+     * If enabled READ BINARY on contact T=0 returns SW 61xx
+     * when Le exceeds the maximum read size of the session,
+     * which is 128 bytes unless configured otherwise. The
+     * remainder is then sent directly from the file in
+     * response to GET RESPONSE commands. At most Le bytes
+     * are returned in total, 256 for Le=00.
+     *
+     * For example a READ BINARY with Le=00 on a file of
+     * 600 bytes returns 128 bytes with SW 6180, and GET
+     * RESPONSE with Le=80 then returns the next 128 bytes.
+     *
+     * Any other command ends the chain, so hosts can stop
+     * reading at any time.
+     */
+    private static final boolean FEATURE_RESPONSE_CHAINING = true;
+
+    /**
+     * Configuration: response chaining of whole files
+     *
+     * If enabled a READ BINARY with Le=00 on contact T=0
+     * chains responses for all data up to the end of the
+     * file instead of at most 256 bytes. This deviates from
+     * ISO 7816-4 and should only be enabled for hosts that
+     * expect it, as hosts fetching GET RESPONSE automatically
+     * will receive the whole remaining file on every read.
+     */
+    private static final boolean FEATURE_RESPONSE_CHAINING_WHOLE_FILE = false;
+
+    /**
+     * Configuration: support for proprietary files
+     *
+     * If enabled proprietary files can be configured using
+     * install parameters. They are announced in the capability
+     * container using proprietary file control TLVs and can be
+     * read and written like data files, but their contents are
+     * raw data without a length field.
+     *
+     * The write-once policy can not be used for them.
+     */
+    private static final boolean FEATURE_PROPRIETARY_FILES = true;
+
+    /**
+     * Configuration: default maximum read block size
      */
     private static final short NDEF_MAX_READ = 128;
 
     /**
-     * Configuration: maximum write block size
+     * Configuration: default maximum write block size
      */
     private static final short NDEF_MAX_WRITE = 128;
 
+    /**
+     * Configuration: maximum read block size with extended length
+     */
+    private static final short NDEF_MAX_READ_EXTENDED = 0x7FFF;
+
+    /**
+     * Configuration: maximum write block size with extended length
+     */
+    private static final short NDEF_MAX_WRITE_EXTENDED = 0x7FFF;
+
+    /**
+     * Configuration: size of the command chaining buffer
+     */
+    private static final short NDEF_MAX_CHAINED = 512;
+
+    /**
+     * Configuration: support for adaptive block sizes
+     *
+     * If enabled the maximum read and write sizes can be
+     * configured to be derived from the transport in use
+     * whenever the applet is selected. Contact T=1 gets the
+     * maximum sizes, contact T=0 is limited to short APDUs
+     * and contactless links are limited to what fits into
+     * the block sizes of the reader and the card.
+     */
+    private static final boolean FEATURE_ADAPTIVE_SIZES = true;
+
+    /**
+     * Configuration: support for mirroring
+     *
+     * If enabled a read counter and a UID can be mirrored
+     * into placeholder regions of the NDEF data file as
+     * ASCII hex, for example into a URL. The regions are
+     * patched into responses while reading, the stored
+     * file is left untouched.
+     *
+     * The counter is incremented on the first response in
+     * each session that covers the counter region, so reads
+     * of other parts of the file do not count. This is the
+     * only persistent write caused by reading and happens
+     * once per tap.
+     */
+    private static final boolean FEATURE_MIRRORING = true;
+
+    /**
+     * Configuration: maximum length of a mirrored UID
+     */
+    private static final byte MIRROR_MAX_UID = 10;
+
+    /**
+     * Minimum read block size allowed by the specification
+     */
+    private static final short NDEF_MIN_READ = 0x000F;
+
+    /**
+     * Minimum write block size allowed by the specification
+     */
+    private static final short NDEF_MIN_WRITE = 0x0001;
+
+    /**
+     * Maximum response size for short APDUs
+     */
+    private static final short RESPONSE_MAX = 256;
+
+    /**
+     * Maximum block size for short APDUs
+     */
+    private static final short NDEF_MAX_SHORT = 0x00FF;
+
+    /**
+     * Overhead of a READ BINARY response in a block (status word)
+     */
+    private static final short ADAPTIVE_READ_OVERHEAD = 2;
+
+    /**
+     * Overhead of an UPDATE BINARY command in a block (header and Lc)
+     */
+    private static final short ADAPTIVE_WRITE_OVERHEAD = 5;
+
     /**
      * Configuration: maximum size of data file
      *
@@ -133,6 +458,27 @@ public final class NdefApplet extends Applet {
      */
     private static final short DEFAULT_NDEF_DATA_SIZE = 256;
 
+    /**
+     * Configuration: maximum number of data file segments
+     *
+     * Each segment holds up to 16384 bytes, so this limits
+     * the data file to 1 MiB when using mapping version 3.0.
+     */
+    private static final short DATA_MAX_SEGMENTS = 64;
+
+    /**
+     * Configuration: maximum number of data file slots
+     */
+    private static final byte DATA_MAX_SLOTS = 8;
+
+    /**
+     * Configuration: maximum number of data files
+     *
+     * This includes the main data file
+     * as well as proprietary files.
+     */
+    private static final byte DATA_MAX_FILES = 8;
+
     /**
      * Configuration: default read access for data file
      */
@@ -146,20 +492,89 @@ public final class NdefApplet extends Applet {
 
     /** Transient variables */
     private short[] vars;
-    /** Variable index for currently selected file */
+    /** Variable index for index of currently selected file */
     private static final byte VAR_SELECTED_FILE = (byte)0;
+    /** Variable index for end of staged data, zero when not staging */
+    private static final byte VAR_STAGED_END = (byte)1;
+    /** Variable index for slot being written plus one, zero when none */
+    private static final byte VAR_PENDING_SLOT = (byte)2;
+    /** Variable index for maximum read size of this session */
+    private static final byte VAR_MAX_READ = (byte)3;
+    /** Variable index for maximum write size of this session */
+    private static final byte VAR_MAX_WRITE = (byte)4;
+    /** Variable index for chaining state, non-zero while chaining */
+    private static final byte VAR_CHAIN_ACTIVE = (byte)5;
+    /** Variable index for P1 and P2 of the chain */
+    private static final byte VAR_CHAIN_P1P2 = (byte)6;
+    /** Variable index for amount of data collected in the chain */
+    private static final byte VAR_CHAIN_LENGTH = (byte)7;
+    /** Variable index for offset of the next chained response */
+    private static final byte VAR_RESPONSE_OFFSET = (byte)8;
+    /** Variable index for data remaining in chained responses */
+    private static final byte VAR_RESPONSE_REMAINING = (byte)9;
+    /** Variable index for mirror state, flags for prepared text */
+    private static final byte VAR_MIRROR_READY = (byte)10;
     /** Number of transient variables */
-    private static final short NUM_VARS = (short)1;
+    private static final short NUM_VARS = (short)11;
+
+    /**
+     * Index of install parameters, shared by all instances
+     *
+     * This is only used while installing, where the
+     * CLEAR_ON_DESELECT variables are not accessible
+     * because the applet has not been selected yet.
+     */
+    private static short[] installIndex;
+
+    /** Grant flag for reading */
+    private static final byte GRANT_READ  = (byte)0x01;
+    /** Grant flag for writing */
+    private static final byte GRANT_WRITE = (byte)0x02;
 
     /** NDEF capability file contents */
     private final byte[] capsFile;
-    /** NDEF data file contents */
-    private final byte[] dataFile;
-
-    /** NDEF data read access policy */
-    private final byte dataReadAccess;
-    /** NDEF data write access policy */
-    private final byte dataWriteAccess;
+    /** NDEF capability file as fixed up for this session (transient) */
+    private final byte[] capsCache;
+    /** Buffer for chained commands (transient) */
+    private final byte[] chainBuffer;
+    /** Configured maximum read size, or MAX_SIZE_ADAPTIVE */
+    private final short capsMaxRead;
+    /** Configured maximum write size, or MAX_SIZE_ADAPTIVE */
+    private final short capsMaxWrite;
+    /** NDEF data file slots, each an array of byte[] segments */
+    private final Object[] dataSlots;
+    /** Index of the active data file slot */
+    private byte dataSlot;
+    /** True if the data file uses mapping version 3.0 */
+    private final boolean dataExtended;
+    /** Staging buffer for the data file (transient), null if not staging */
+    private final byte[] dataStaging;
+    /** Write mode of the data file */
+    private final byte dataWriteMode;
+    /** True while non-atomic writes to the data file are pending */
+    private boolean dataTorn;
+
+    /** File IDs, indexed by file */
+    private final short[] fileIds;
+    /** File control TLV tags, indexed by file */
+    private final byte[] fileTags;
+    /** Contents of additional data files, indexed by file */
+    private final Object[] fileData;
+    /** Read access policies, indexed by file */
+    private final byte[] fileReadAccess;
+    /** Write access policies, indexed by file */
+    private final byte[] fileWriteAccess;
+    /** Access grants for this session (transient), indexed by file */
+    private final byte[] fileGrants;
+
+    /** Mirrored regions of the data file, null if not mirroring */
+    private final short[] mirrorRegions;
+    /** Read counter for mirroring, null if not mirrored */
+    private final byte[] mirrorCounter;
+    /** UID for mirroring, null if not mirrored */
+    private final byte[] mirrorUID;
+    /** Mirror text for this session (transient), counter followed by ASCII hex */
+    private final byte[] mirrorText;
 
     /**
      * Installs an NDEF applet
@@ -210,24 +625,38 @@ public final class NdefApplet extends Applet {
     protected NdefApplet(byte[] buf, short off, byte len) {
 
         short initSize = DEFAULT_NDEF_DATA_SIZE;
+        short initSizeHigh = 0;
+        boolean initExtended = false;
         byte initReadAccess = DEFAULT_NDEF_READ_ACCESS;
         byte initWriteAccess = DEFAULT_NDEF_WRITE_ACCESS;
+        byte initWriteMode = WRITE_MODE_DIRECT;
+        byte initSlots = 1;
+        byte initFiles = 1;
+        short initMaxRead = NDEF_MAX_READ;
+        short initMaxWrite = NDEF_MAX_WRITE;
+        short initMirror = -1;
         byte[] initBuf = null;
         short  initOff = 0;
         short  initLen = 0;
+        short[] tags = null;
 
         // create variables
         vars = JCSystem.makeTransientShortArray(NUM_VARS, JCSystem.CLEAR_ON_DESELECT);
 
         // process application data
         if(FEATURE_INSTALL_PARAMETERS) {
-            // check TLV consistency
-            if (!UtilTLV.isTLVconsistent(buf, off, len)) {
+            // check TLV consistency and index tags in one pass,
+            // allocating the index only for the first instance
+            if(installIndex == null) {
+                installIndex = JCSystem.makeTransientShortArray(AD_NUM_TAGS, JCSystem.CLEAR_ON_RESET);
+            }
+            tags = installIndex;
+            if (!UtilTLV.indexTags(buf, off, len, AD_TAG_NDEF_DATA_INITIAL, tags)) {
                 ISOException.throwIt(ISO7816.SW_DATA_INVALID);
             }
 
             // DATA INITIAL
-            short initTag = UtilTLV.findTag(buf, off, len, AD_TAG_NDEF_DATA_INITIAL);
+            short initTag = getIndexedTag(tags, AD_TAG_NDEF_DATA_INITIAL);
             if (initTag >= 0) {
                 initBuf = buf;
                 initLen = UtilTLV.decodeLengthField(buf, (short) (initTag + 1));
@@ -239,7 +668,7 @@ public final class NdefApplet extends Applet {
             }
 
             // DATA ACCESS
-            short tagAccess = UtilTLV.findTag(buf, off, len, AD_TAG_NDEF_DATA_ACCESS);
+            short tagAccess = getIndexedTag(tags, AD_TAG_NDEF_DATA_ACCESS);
             if (tagAccess >= 0) {
                 short accessLen = UtilTLV.decodeLengthField(buf, (short) (tagAccess + 1));
                 if (accessLen != 2) {
@@ -250,16 +679,84 @@ public final class NdefApplet extends Applet {
             }
 
             // DATA SIZE
-            short tagSize = UtilTLV.findTag(buf, off, len, AD_TAG_NDEF_DATA_SIZE);
+            short tagSize = getIndexedTag(tags, AD_TAG_NDEF_DATA_SIZE);
             if (tagSize >= 0) {
                 short sizeLen = UtilTLV.decodeLengthField(buf, (short) (tagSize + 1));
-                if (sizeLen != 2) {
+                if (sizeLen == 2) {
+                    initSize = Util.getShort(buf, (short) (tagSize + 2));
+                    if (initSize < 0) {
+                        ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+                    }
+                } else if (FEATURE_MAPPING_3 && sizeLen == 4) {
+                    initSizeHigh = Util.getShort(buf, (short) (tagSize + 2));
+                    initSize = Util.getShort(buf, (short) (tagSize + 4));
+                    // extended files must be at least 0xFFFF bytes
+                    if (initSizeHigh < 0 || (initSizeHigh == 0 && initSize != (short)0xFFFF)) {
+                        ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+                    }
+                    initExtended = true;
+                } else {
+                    ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+                }
+            }
+
+            // WRITE MODE
+            short tagMode = getIndexedTag(tags, AD_TAG_NDEF_WRITE_MODE);
+            if (tagMode >= 0) {
+                short modeLen = UtilTLV.decodeLengthField(buf, (short) (tagMode + 1));
+                if (modeLen != 1) {
+                    ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+                }
+                initWriteMode = buf[(short) (tagMode + 2)];
+            }
+
+            // DATA SLOTS
+            short tagSlots = getIndexedTag(tags, AD_TAG_NDEF_DATA_SLOTS);
+            if (FEATURE_WEAR_LEVELING && tagSlots >= 0) {
+                short slotsLen = UtilTLV.decodeLengthField(buf, (short) (tagSlots + 1));
+                if (slotsLen != 1) {
+                    ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+                }
+                initSlots = buf[(short) (tagSlots + 2)];
+                // slots can only be used with direct writing
+                if (initSlots < 1 || initSlots > DATA_MAX_SLOTS
+                        || (initSlots > 1 && initWriteMode != WRITE_MODE_DIRECT)) {
                     ISOException.throwIt(ISO7816.SW_DATA_INVALID);
                 }
-                initSize = Util.getShort(buf, (short) (tagSize + 2));
-                if (initSize < 0) {
+            }
+
+            // MAX SIZES
+            short tagMax = getIndexedTag(tags, AD_TAG_NDEF_MAX_SIZES);
+            if (tagMax >= 0) {
+                short maxLen = UtilTLV.decodeLengthField(buf, (short) (tagMax + 1));
+                if (maxLen != 4) {
                     ISOException.throwIt(ISO7816.SW_DATA_INVALID);
                 }
+                initMaxRead = checkMaxSize(Util.getShort(buf, (short) (tagMax + 2)),
+                        NDEF_MIN_READ, getMaxReadLimit());
+                initMaxWrite = checkMaxSize(Util.getShort(buf, (short) (tagMax + 4)),
+                        NDEF_MIN_WRITE, getMaxWriteLimit());
+            }
+
+            // MIRROR
+            if (FEATURE_MIRRORING) {
+                initMirror = getIndexedTag(tags, AD_TAG_NDEF_MIRROR);
+            }
+
+            // NDEF FILE, may be repeated
+            if (FEATURE_MULTIPLE_FILES) {
+                initFiles += countTags(buf, getIndexedTag(tags, AD_TAG_NDEF_FILE),
+                        (short) (off + len), AD_TAG_NDEF_FILE);
+            }
+
+            // PROPRIETARY FILE, may be repeated
+            if (FEATURE_PROPRIETARY_FILES) {
+                initFiles += countTags(buf, getIndexedTag(tags, AD_TAG_PROPRIETARY_FILE),
+                        (short) (off + len), AD_TAG_PROPRIETARY_FILE);
+            }
+
+            if (initFiles > DATA_MAX_FILES) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
             }
         }
 
@@ -268,26 +765,326 @@ public final class NdefApplet extends Applet {
             initWriteAccess = FILE_ACCESS_NONE;
         }
 
-        // set up access
-        dataReadAccess = initReadAccess;
-        dataWriteAccess = initWriteAccess;
+        // large files require mapping version 3.0
+        dataExtended = FEATURE_MAPPING_3 && initExtended;
+
+        // create the file table
+        short numFiles = (short)(1 + initFiles);
+        fileIds = new short[numFiles];
+        fileTags = new byte[numFiles];
+        fileData = new Object[numFiles];
+        fileReadAccess = new byte[numFiles];
+        fileWriteAccess = new byte[numFiles];
+        fileGrants = JCSystem.makeTransientByteArray(numFiles, JCSystem.CLEAR_ON_DESELECT);
+        addFile(FILE_NDEF_CAPABILITIES, (byte)0, FILEID_NDEF_CAPABILITIES,
+                FILE_ACCESS_OPEN, FILE_ACCESS_NONE);
+        addFile(FILE_NDEF_DATA,
+                dataExtended ? CC_TAG_EXTENDED_NDEF_FILE_CONTROL : CC_TAG_NDEF_FILE_CONTROL,
+                FILEID_NDEF_DATA, initReadAccess, initWriteAccess);
+
+        // create additional files
+        byte index = (byte)(FILE_NDEF_DATA + 1);
+        if(FEATURE_INSTALL_PARAMETERS && FEATURE_MULTIPLE_FILES) {
+            index = makeFiles(buf, getIndexedTag(tags, AD_TAG_NDEF_FILE), (short)(off + len),
+                    AD_TAG_NDEF_FILE, CC_TAG_NDEF_FILE_CONTROL, index);
+        }
+        if(FEATURE_INSTALL_PARAMETERS && FEATURE_PROPRIETARY_FILES) {
+            makeFiles(buf, getIndexedTag(tags, AD_TAG_PROPRIETARY_FILE), (short)(off + len),
+                    AD_TAG_PROPRIETARY_FILE, CC_TAG_PROPRIETARY_FILE_CONTROL, index);
+        }
+
+        // set up block sizes
+        capsMaxRead = initMaxRead;
+        capsMaxWrite = initMaxWrite;
 
         // create file contents
-        capsFile = makeCaps(initSize, initReadAccess, initWriteAccess);
-        dataFile = makeData(initSize, initBuf, initOff, initLen);
+        capsFile = makeCaps(initSizeHigh, initSize);
+        capsCache = JCSystem.makeTransientByteArray((short)capsFile.length, JCSystem.CLEAR_ON_DESELECT);
+        chainBuffer = FEATURE_COMMAND_CHAINING
+                ? JCSystem.makeTransientByteArray(NDEF_MAX_CHAINED, JCSystem.CLEAR_ON_DESELECT)
+                : null;
+        dataSlots = new Object[initSlots];
+        for(byte i = 0; i < initSlots; i++) {
+            dataSlots[i] = makeData(initSizeHigh, initSize, initBuf, initOff, initLen);
+            initBuf = null;
+        }
+
+        // set up the write mode
+        byte[] staging = null;
+        if(FEATURE_WRITE_STAGING && initWriteMode == WRITE_MODE_STAGED) {
+            // staging is limited to files addressable with a short
+            if(dataExtended) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+            staging = JCSystem.makeTransientByteArray(initSize, JCSystem.CLEAR_ON_DESELECT);
+        } else if(!(FEATURE_WRITE_NON_ATOMIC && initWriteMode == WRITE_MODE_NON_ATOMIC)
+                && initWriteMode != WRITE_MODE_DIRECT) {
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        }
+        dataStaging = staging;
+        dataWriteMode = initWriteMode;
+
+        // set up mirroring
+        short[] regions = null;
+        byte[] counter = null;
+        byte[] uid = null;
+        byte[] text = null;
+        if(FEATURE_INSTALL_PARAMETERS && FEATURE_MIRRORING && initMirror >= 0) {
+            short mirrorLen = UtilTLV.decodeLengthField(buf, (short) (initMirror + 1));
+            short mirrorPos = (short) (initMirror + 2);
+            short uidLen = (short) (mirrorLen - 4);
+            if (uidLen < 0 || uidLen > MIRROR_MAX_UID) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+            short counterOff = Util.getShort(buf, mirrorPos);
+            short uidOff = Util.getShort(buf, (short) (mirrorPos + 2));
+            // a UID must be given exactly when it is mirrored
+            if ((uidOff == MIRROR_NONE) != (uidLen == 0)) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+            text = JCSystem.makeTransientByteArray(
+                    (short) (MIRROR_COUNTER_SIZE + 2 * MIRROR_COUNTER_SIZE + 2 * uidLen),
+                    JCSystem.CLEAR_ON_DESELECT);
+            regions = new short[2 * MIRROR_ENTRY_SIZE];
+            short count = 0;
+            if (counterOff != MIRROR_NONE) {
+                counter = new byte[MIRROR_COUNTER_SIZE];
+                count = addMirror(regions, count, counterOff, MIRROR_TEXT_COUNTER,
+                        (short) (2 * MIRROR_COUNTER_SIZE), initSizeHigh, initSize);
+            }
+            if (uidOff != MIRROR_NONE) {
+                uid = new byte[uidLen];
+                Util.arrayCopy(buf, (short) (mirrorPos + 4), uid, (short) 0, uidLen);
+                count = addMirror(regions, count, uidOff, MIRROR_TEXT_UID,
+                        (short) (2 * uidLen), initSizeHigh, initSize);
+            }
+            if (count == 0) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+            // regions must not overlap
+            if (count == 2) {
+                short first = regions[MIRROR_OFF_FILE];
+                short second = regions[MIRROR_ENTRY_SIZE + MIRROR_OFF_FILE];
+                if (first < (short) (second + regions[MIRROR_ENTRY_SIZE + MIRROR_OFF_LENGTH])
+                        && second < (short) (first + regions[MIRROR_OFF_LENGTH])) {
+                    ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+                }
+            }
+        }
+        mirrorRegions = regions;
+        mirrorCounter = counter;
+        mirrorUID = uid;
+        mirrorText = text;
+    }
+
+    /**
+     * Add a mirrored region
+     *
+     * Regions must lie in the data file after the record
+     * size and within the first 32767 bytes of the file.
+     *
+     * @param regions table of regions
+     * @param count of regions in the table
+     * @param fileOff offset of the region in the data file
+     * @param textOff offset of the mirrored text
+     * @param len of the region
+     * @param dataSizeHigh upper half of the data file size
+     * @param dataSize lower half of the data file size
+     * @return new count of regions
+     * @throws ISOException if the region is invalid
+     */
+    private short addMirror(short[] regions, short count, short fileOff, short textOff, short len,
+                            short dataSizeHigh, short dataSize) throws ISOException {
+        short end = (short) (fileOff + len);
+        if (fileOff < getLengthSize(FILE_NDEF_DATA) || end < 0
+                || (dataSizeHigh == 0 && dataSize >= 0 && end > dataSize)) {
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        }
+        short entry = (short) (count * MIRROR_ENTRY_SIZE);
+        regions[(short) (entry + MIRROR_OFF_FILE)] = fileOff;
+        regions[(short) (entry + MIRROR_OFF_TEXT)] = textOff;
+        regions[(short) (entry + MIRROR_OFF_LENGTH)] = len;
+        return (short) (count + 1);
+    }
+
+    /**
+     * Look up an install parameter in the tag index
+     *
+     * @param tags index as prepared by UtilTLV.indexTags()
+     * @param tag to look up
+     * @return position of the first occurrence, or -1 if not found
+     */
+    private static short getIndexedTag(short[] tags, byte tag) {
+        return tags[(short)(tag - AD_TAG_NDEF_DATA_INITIAL)];
+    }
+
+    /**
+     * Find the next occurrence of a tag at level 1
+     *
+     * @param buf containing the TLV structure
+     * @param tagPos position of the previous occurrence
+     * @param end of the TLV structure in buf
+     * @param tag to search for
+     * @return position of the tag, or -1 if not found
+     */
+    private static short findNextTag(byte[] buf, short tagPos, short end, byte tag) {
+        short len = UtilTLV.decodeLengthField(buf, (short)(tagPos + 1));
+        short pos = (short)(tagPos + 1 + UtilTLV.getLengthFieldLength(len) + len);
+        return UtilTLV.findTag(buf, pos, (short)(end - pos), tag);
+    }
+
+    /**
+     * Count the occurrences of a tag at level 1
+     *
+     * @param buf containing the TLV structure
+     * @param first position of the first occurrence, or -1 if none
+     * @param end of the TLV structure in buf
+     * @param tag to count
+     * @return number of occurrences
+     */
+    private static byte countTags(byte[] buf, short first, short end, byte tag) {
+        byte count = 0;
+        short tagPos = first;
+        while(tagPos >= 0) {
+            count++;
+            tagPos = findNextTag(buf, tagPos, end, tag);
+        }
+        return count;
+    }
+
+    /**
+     * Create files described by install parameters
+     *
+     * Each occurrence of TAG describes one file using the
+     * layout of a file control TLV in the capabilities.
+     *
+     * @param buf containing application data
+     * @param first position of the first occurrence, or -1 if none
+     * @param end of app data in buf
+     * @param tag of the install parameter
+     * @param ccTag of the file control TLV for the files
+     * @param index of the first file to create
+     * @return index following the created files
+     * @throws ISOException if a file is invalid
+     */
+    private byte makeFiles(byte[] buf, short first, short end, byte tag, byte ccTag, byte index) throws ISOException {
+        boolean ndef = (ccTag == CC_TAG_NDEF_FILE_CONTROL);
+        short tagFile = first;
+        while(tagFile >= 0) {
+            short fileLen = UtilTLV.decodeLengthField(buf, (short)(tagFile + 1));
+            if(fileLen != CC_LEN_NDEF_FILE_CONTROL) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+            short fc = (short)(tagFile + 2);
+            short fileSize = Util.getShort(buf, (short)(fc + FC_OFF_SIZE));
+            byte fileRead = buf[(short)(fc + FC_OFF_READ_ACCESS)];
+            byte fileWrite = buf[(short)(fc + FC_OFF_WRITE_ACCESS)];
+            // NDEF files need room for the length field
+            if(fileSize < (ndef ? (short)2 : (short)1)) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+            // proprietary files have no length field to check
+            if(!ndef && (fileRead == FILE_ACCESS_PROP_WRITE_ONCE
+                    || fileWrite == FILE_ACCESS_PROP_WRITE_ONCE)) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+            if(!FEATURE_WRITING) {
+                fileWrite = FILE_ACCESS_NONE;
+            }
+            addFile(index, ccTag, Util.getShort(buf, (short)(fc + FC_OFF_FILE_ID)), fileRead, fileWrite);
+            fileData[index] = makeData((short)0, fileSize, null, (short)0, (short)0);
+            index++;
+            tagFile = findNextTag(buf, tagFile, end, tag);
+        }
+        return index;
+    }
+
+    /**
+     * Add a file to the file table
+     *
+     * File IDs must not be reserved and must be unique.
+     *
+     * @param index of the file in the table
+     * @param ccTag of the file control TLV for the file
+     * @param fileId of the file
+     * @param readAccess policy for the file
+     * @param writeAccess policy for the file
+     * @throws ISOException if the file ID can not be used
+     */
+    private void addFile(byte index, byte ccTag, short fileId, byte readAccess, byte writeAccess) throws ISOException {
+        // reject reserved IDs
+        if(fileId == FILEID_RESERVED_NONE || fileId == FILEID_RESERVED_NDEF_V1
+                || fileId == FILEID_RESERVED_MF || fileId == FILEID_RESERVED_RFU
+                || fileId == FILEID_RESERVED_INVALID) {
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        }
+        // reject duplicate IDs
+        if(findFile(fileId) != FILE_NONE) {
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        }
+        // enter the file
+        fileIds[index] = fileId;
+        fileTags[index] = ccTag;
+        fileReadAccess[index] = readAccess;
+        fileWriteAccess[index] = writeAccess;
+    }
+
+    /**
+     * Find a file in the file table
+     *
+     * @param fileId to look for
+     * @return index of the file, or FILE_NONE if not found
+     */
+    private byte findFile(short fileId) {
+        for(byte index = 0; index < (byte)fileIds.length; index++) {
+            if(fileIds[index] == fileId) {
+                return index;
+            }
+        }
+        return FILE_NONE;
+    }
+
+    /**
+     * Find a file in the file table by short file identifier
+     *
+     * The first file whose ID ends in the given five
+     * bits is returned. Identifier 0 is reserved for
+     * the current file and is never found here.
+     *
+     * @param sfi to look for
+     * @return index of the file, or FILE_NONE if not found
+     */
+    private byte findFileBySFI(byte sfi) {
+        if(sfi != 0) {
+            for(byte index = 0; index < (byte)fileIds.length; index++) {
+                if((byte)(fileIds[index] & BINARY_P1_SFI_MASK) == sfi) {
+                    return index;
+                }
+            }
+        }
+        return FILE_NONE;
     }
 
     /**
      * Create and initialize the CAPABILITIES file
      *
+     * An extended NDEF file control TLV will be
+     * used when the data file is in extended mode.
+     *
+     * Additional data files and proprietary files follow
+     * the data file, each with its own file control TLV.
+     *
+     * @param dataSizeHigh upper half of size to be allocated
      * @param dataSize to be allocated
-     * @param dataReadAccess to put in the CC
-     * @param dataWriteAccess to put in the CC
      * @return an array for use as the CC file
      */
-    private byte[] makeCaps(short dataSize,
-                            byte dataReadAccess, byte dataWriteAccess) {
+    private byte[] makeCaps(short dataSizeHigh, short dataSize) {
+        short numExtra = (short)(fileIds.length - 2);
         short capsLen = (short)(CC_LEN_HEADER + 2 + CC_LEN_NDEF_FILE_CONTROL);
+        if(dataExtended) {
+            capsLen = (short)(CC_LEN_HEADER + 2 + CC_LEN_EXTENDED_NDEF_FILE_CONTROL);
+        }
+        capsLen += (short)(numExtra * (2 + CC_LEN_NDEF_FILE_CONTROL));
         byte[] caps = new byte[capsLen];
 
         short pos = 0;
@@ -295,23 +1092,52 @@ public final class NdefApplet extends Applet {
         // CC length
         pos = Util.setShort(caps, pos, capsLen);
         // mapping version
-        caps[pos++] = NDEF_MAPPING_VERSION;
-        // maximum read size
-        pos = Util.setShort(caps, pos, NDEF_MAX_READ);
-        // maximum write size
-        pos = Util.setShort(caps, pos, NDEF_MAX_WRITE);
-
-        // NDEF File Control TLV
-        caps[pos++] = CC_TAG_NDEF_FILE_CONTROL;
-        caps[pos++] = CC_LEN_NDEF_FILE_CONTROL;
-        // file ID
-        pos = Util.setShort(caps, pos, FILEID_NDEF_DATA);
-        // file size
-        pos = Util.setShort(caps, pos, dataSize);
+        caps[pos++] = dataExtended ? NDEF_MAPPING_VERSION_3 : NDEF_MAPPING_VERSION;
+        // maximum read size, adaptive sizes are fixed up per session
+        pos = Util.setShort(caps, pos,
+                capsMaxRead == MAX_SIZE_ADAPTIVE ? getMaxReadLimit() : capsMaxRead);
+        // maximum write size, adaptive sizes are fixed up per session
+        pos = Util.setShort(caps, pos,
+                capsMaxWrite == MAX_SIZE_ADAPTIVE ? getMaxWriteLimit() : capsMaxWrite);
+
+        if(dataExtended) {
+            // Extended NDEF File Control TLV
+            caps[pos++] = CC_TAG_EXTENDED_NDEF_FILE_CONTROL;
+            caps[pos++] = CC_LEN_EXTENDED_NDEF_FILE_CONTROL;
+            // file ID
+            pos = Util.setShort(caps, pos, FILEID_NDEF_DATA);
+            // file size
+            pos = Util.setShort(caps, pos, dataSizeHigh);
+            pos = Util.setShort(caps, pos, dataSize);
+        } else {
+            // NDEF File Control TLV
+            caps[pos++] = CC_TAG_NDEF_FILE_CONTROL;
+            caps[pos++] = CC_LEN_NDEF_FILE_CONTROL;
+            // file ID
+            pos = Util.setShort(caps, pos, FILEID_NDEF_DATA);
+            // file size
+            pos = Util.setShort(caps, pos, dataSize);
+        }
         // read access
-        caps[pos++] = dataReadAccess;
+        caps[pos++] = fileReadAccess[FILE_NDEF_DATA];
         // write access
-        caps[pos++] = dataWriteAccess;
+        caps[pos++] = fileWriteAccess[FILE_NDEF_DATA];
+
+        // additional files
+        for(byte i = (byte)(FILE_NDEF_DATA + 1); i < (byte)fileIds.length; i++) {
+            Object[] file = (Object[])fileData[i];
+            short size = 0;
+            for(short j = 0; j < (short)file.length; j++) {
+                size += (short)((byte[])file[j]).length;
+            }
+            // NDEF or Proprietary File Control TLV, both of the same length
+            caps[pos++] = fileTags[i];
+            caps[pos++] = CC_LEN_NDEF_FILE_CONTROL;
+            pos = Util.setShort(caps, pos, fileIds[i]);
+            pos = Util.setShort(caps, pos, size);
+            caps[pos++] = fileReadAccess[i];
+            caps[pos++] = fileWriteAccess[i];
+        }
 
         // check consistency
         if(pos != capsLen) {
@@ -325,22 +1151,49 @@ public final class NdefApplet extends Applet {
     /**
      * Create and initialize the DATA file
      *
+     * The file is split into segments of DATA_SEGMENT_SIZE
+     * bytes, with the last segment holding the remainder.
+     *
+     * @param dataSizeHigh upper half of size to be allocated
      * @param dataSize to be allocated
      * @param init buffer containing initial data
      * @param initOff offset of initial data in buffer
      * @param initLen length of initial data in buffer
-     * @return an array for use as the data file
+     * @return an array of segments for use as the data file
      */
-    private byte[] makeData(short dataSize, byte[] init, short initOff, short initLen) {
-        byte[] data = new byte[dataSize];
+    private Object[] makeData(short dataSizeHigh, short dataSize, byte[] init, short initOff, short initLen) {
+        // determine segment layout
+        short full = (short)((dataSizeHigh << 2) | ((dataSize >> DATA_SEGMENT_SHIFT) & 3));
+        short last = (short)(dataSize & DATA_SEGMENT_MASK);
+        short count = full;
+        if(last != 0) {
+            count++;
+        }
+        if(dataSizeHigh > (short)(DATA_MAX_SEGMENTS >> 2) || count > DATA_MAX_SEGMENTS || count == 0) {
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        }
+
+        // allocate segments
+        Object[] data = new Object[count];
+        for(short i = 0; i < full; i++) {
+            data[i] = new byte[DATA_SEGMENT_SIZE];
+        }
+        if(last != 0) {
+            data[full] = new byte[last];
+        }
 
         // initialize from init, if provided
         if (FEATURE_INSTALL_PARAMETERS) {
             if (init != null && initLen > 0) {
+                byte[] first = (byte[])data[0];
+                short initPos = 0;
                 // container size
-                Util.setShort(data, (short) 0, initLen);
+                if(dataExtended) {
+                    initPos = Util.setShort(first, initPos, (short)0);
+                }
+                initPos = Util.setShort(first, initPos, initLen);
                 // initial data
-                Util.arrayCopyNonAtomic(init, initOff, data, (short) 2, initLen);
+                Util.arrayCopyNonAtomic(init, initOff, first, initPos, initLen);
             }
         }
 
@@ -353,42 +1206,203 @@ public final class NdefApplet extends Applet {
      * This will be called to fix up capabilities before
      * they are actually sent out to the host device.
      *
-     * Currently this only fixes up the access policies
-     * so as to hide our proprietary policies.
+     * This fixes up the maximum read and write sizes to
+     * those in effect for this session as well as the access
+     * policies so as to hide our proprietary policies, using
+     * the grants currently in effect for each file.
      *
      * @param caps buffer containing CC to fix
      * @param off offset of CC in buffer
      * @param len of CC in buffer
      */
     private void fixCaps(byte[] caps, short off, short len) {
+        if(FEATURE_ADAPTIVE_SIZES) {
+            Util.setShort(caps, (short) (off + CC_OFF_MAX_READ), vars[VAR_MAX_READ]);
+            Util.setShort(caps, (short) (off + CC_OFF_MAX_WRITE), vars[VAR_MAX_WRITE]);
+        }
         if(FEATURE_ADVANCED_ACCESS_CONTROL) {
-            short offNFC = (short) (off + CC_OFF_NDEF_FILE_CONTROL + 2);
-            short offR = (short) (offNFC + FC_OFF_READ_ACCESS);
-            short offW = (short) (offNFC + FC_OFF_WRITE_ACCESS);
-            caps[offR] = fixAccess(dataFile, dataReadAccess);
-            caps[offW] = fixAccess(dataFile, dataWriteAccess);
+            short offTLV = (short) (off + CC_OFF_NDEF_FILE_CONTROL);
+            // file control TLVs are in file table order
+            for(byte i = FILE_NDEF_DATA; i < (byte)fileIds.length; i++) {
+                short offNFC = (short) (offTLV + 2);
+                short offR = (short) (offNFC + FC_OFF_READ_ACCESS);
+                short offW = (short) (offNFC + FC_OFF_WRITE_ACCESS);
+                if(fileTags[i] == CC_TAG_EXTENDED_NDEF_FILE_CONTROL) {
+                    offR = (short) (offNFC + EFC_OFF_READ_ACCESS);
+                    offW = (short) (offNFC + EFC_OFF_WRITE_ACCESS);
+                }
+                byte grants = fileGrants[i];
+                caps[offR] = fixAccess(fileReadAccess[i], (grants & GRANT_READ) != 0);
+                caps[offW] = fixAccess(fileWriteAccess[i], (grants & GRANT_WRITE) != 0);
+                offTLV = (short) (offNFC + caps[(short) (offTLV + 1)]);
+            }
         }
     }
 
     /**
-     * Process an APDU
-     *
-     * This is the outer layer of our APDU dispatch.
+     * Refresh the block sizes for this session
      *
-     * It deals with the CLA and INS of the APDU,
-     * leaving the rest to an INS-specific function.
+     * Configured sizes are used as they are. Adaptive sizes
+     * are derived from the protocol and media in use: contact
+     * T=1 gets the maximum, contact T=0 is limited to short
+     * APDUs and contactless links to the block sizes.
      *
-     * @param apdu to be processed
-     * @throws ISOException on error
+     * Called in select(), before refreshAccess().
      */
-    public final void process(APDU apdu) throws ISOException {
-        byte[] buffer = apdu.getBuffer();
-        byte ins = buffer[ISO7816.OFFSET_INS];
-
-        // handle selection of the applet
-        if(selectingApplet()) {
-            vars[VAR_SELECTED_FILE] = FILEID_NONE;
-            return;
+    private void refreshSizes() {
+        short maxRead = capsMaxRead;
+        short maxWrite = capsMaxWrite;
+        if(FEATURE_ADAPTIVE_SIZES
+                && (maxRead == MAX_SIZE_ADAPTIVE || maxWrite == MAX_SIZE_ADAPTIVE)) {
+            // get protocol and media information
+            byte protocol = APDU.getProtocol();
+            byte media = (byte) (protocol & APDU.PROTOCOL_MEDIA_MASK);
+            byte type = (byte) (protocol & APDU.PROTOCOL_TYPE_MASK);
+            // determine what the transport handles well
+            short read = getMaxReadLimit();
+            short write = getMaxWriteLimit();
+            if(media == APDU.PROTOCOL_MEDIA_DEFAULT && type == APDU.PROTOCOL_T0) {
+                read = limitSize(NDEF_MAX_SHORT, NDEF_MIN_READ, read);
+                write = limitSize(NDEF_MAX_SHORT, NDEF_MIN_WRITE, write);
+            } else if(media == APDU.PROTOCOL_MEDIA_CONTACTLESS_TYPE_A
+                    || media == APDU.PROTOCOL_MEDIA_CONTACTLESS_TYPE_B) {
+                read = limitSize((short) (APDU.getOutBlockSize() - ADAPTIVE_READ_OVERHEAD),
+                        NDEF_MIN_READ, read);
+                write = limitSize((short) (APDU.getInBlockSize() - ADAPTIVE_WRITE_OVERHEAD),
+                        NDEF_MIN_WRITE, write);
+            }
+            // apply where requested
+            if(maxRead == MAX_SIZE_ADAPTIVE) {
+                maxRead = read;
+            }
+            if(maxWrite == MAX_SIZE_ADAPTIVE) {
+                maxWrite = write;
+            }
+        }
+        vars[VAR_MAX_READ] = maxRead;
+        vars[VAR_MAX_WRITE] = maxWrite;
+    }
+
+    /**
+     * Limit a size to the given range
+     *
+     * @param size to limit
+     * @param min of the range
+     * @param max of the range
+     * @return the limited size
+     */
+    private static short limitSize(short size, short min, short max) {
+        if(size < min) {
+            return min;
+        }
+        if(size > max) {
+            return max;
+        }
+        return size;
+    }
+
+    /**
+     * Check a configured maximum size
+     *
+     * @param size to check
+     * @param min allowed size
+     * @param max allowed size
+     * @return the size
+     * @throws ISOException if the size is not allowed
+     */
+    private static short checkMaxSize(short size, short min, short max) throws ISOException {
+        if(size == MAX_SIZE_ADAPTIVE) {
+            if(!FEATURE_ADAPTIVE_SIZES) {
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+        } else if(size < min || size > max) {
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        }
+        return size;
+    }
+
+    /**
+     * @return largest maximum read size supported by this build
+     */
+    private static short getMaxReadLimit() {
+        return FEATURE_EXTENDED_LENGTH ? NDEF_MAX_READ_EXTENDED : NDEF_MAX_READ;
+    }
+
+    /**
+     * @return largest maximum write size supported by this build
+     */
+    private static short getMaxWriteLimit() {
+        return FEATURE_EXTENDED_LENGTH ? NDEF_MAX_WRITE_EXTENDED : NDEF_MAX_WRITE;
+    }
+
+    /**
+     * Refresh session state derived from access policies
+     *
+     * This evaluates the access policies for all files
+     * and prepares the fixed-up capability container, so that
+     * neither has to be done again for every command.
+     *
+     * Called in select() and whenever the length
+     * field of a data file has been written, because the
+     * write-once policy depends on it.
+     */
+    private void refreshAccess() {
+        // CC can always be read
+        fileGrants[FILE_NDEF_CAPABILITIES] = GRANT_READ;
+        // evaluate policies
+        for(byte i = FILE_NDEF_DATA; i < (byte)fileIds.length; i++) {
+            byte grants = 0;
+            if(checkAccess(i, fileReadAccess[i])) {
+                grants |= GRANT_READ;
+            }
+            if(checkAccess(i, fileWriteAccess[i])) {
+                grants |= GRANT_WRITE;
+            }
+            fileGrants[i] = grants;
+        }
+        // prepare the capability container
+        short capsLen = (short)capsFile.length;
+        Util.arrayCopyNonAtomic(capsFile, (short)0, capsCache, (short)0, capsLen);
+        fixCaps(capsCache, (short)0, capsLen);
+    }
+
+    /**
+     * Prepare a new session
+     *
+     * Called by the runtime whenever the applet is selected,
+     * including implicit selection as the default applet,
+     * so session state is ready before the first command.
+     *
+     * @return true to accept selection
+     */
+    public boolean select() {
+        vars[VAR_SELECTED_FILE] = FILE_NONE;
+        if(FEATURE_WRITE_NON_ATOMIC && dataTorn) {
+            recoverData();
+        }
+        refreshSizes();
+        refreshAccess();
+        return true;
+    }
+
+    /**
+     * Process an APDU
+     *
+     * This is the outer layer of our APDU dispatch.
+     *
+     * It deals with the CLA and INS of the APDU,
+     * leaving the rest to an INS-specific function.
+     *
+     * @param apdu to be processed
+     * @throws ISOException on error
+     */
+    public final void process(APDU apdu) throws ISOException {
+        byte[] buffer = apdu.getBuffer();
+        byte ins = buffer[ISO7816.OFFSET_INS];
+
+        // selection of the applet is handled by select()
+        if(selectingApplet()) {
+            return;
         }
 
         // secure messaging is not supported
@@ -396,6 +1410,22 @@ public final class NdefApplet extends Applet {
             ISOException.throwIt(ISO7816.SW_SECURE_MESSAGING_NOT_SUPPORTED);
         }
 
+        // response chaining ends with any other command
+        if(FEATURE_RESPONSE_CHAINING && ins != INS_GET_RESPONSE) {
+            vars[VAR_RESPONSE_REMAINING] = 0;
+        }
+
+        // command chaining is only supported for UPDATE BINARY
+        if(FEATURE_COMMAND_CHAINING && ins != INS_UPDATE_BINARY) {
+            if(vars[VAR_CHAIN_ACTIVE] != 0) {
+                vars[VAR_CHAIN_ACTIVE] = 0;
+                ISOException.throwIt(ISO7816.SW_LAST_COMMAND_EXPECTED);
+            }
+            if(apdu.isCommandChainingCLA()) {
+                ISOException.throwIt(ISO7816.SW_COMMAND_CHAINING_NOT_SUPPORTED);
+            }
+        }
+
         // process commands to the applet
         if(apdu.isISOInterindustryCLA()) {
             if (ins == INS_SELECT) {
@@ -408,6 +1438,16 @@ public final class NdefApplet extends Applet {
                 } else {
                     ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
                 }
+            } else if (FEATURE_RESPONSE_CHAINING && ins == INS_GET_RESPONSE) {
+                processGetResponse(apdu);
+            } else if (FEATURE_MAPPING_3 && ins == INS_READ_BINARY_ODO) {
+                processReadBinaryODO(apdu);
+            } else if (FEATURE_MAPPING_3 && ins == INS_UPDATE_BINARY_ODO) {
+                if(FEATURE_WRITING) {
+                    processUpdateBinaryODO(apdu);
+                } else {
+                    ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
+                }
             } else {
                 ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
             }
@@ -425,6 +1465,8 @@ public final class NdefApplet extends Applet {
      * The file ID is specified in the APDU contents. It
      * must be exactly two bytes long and also valid.
      *
+     * Files are looked up directly in the file table.
+     *
      * @param apdu to process
      * @throws ISOException on error
      */
@@ -450,21 +1492,22 @@ public final class NdefApplet extends Applet {
         short fileId = Util.getShort(buffer, ISO7816.OFFSET_CDATA);
 
         // perform selection if the ID is valid
-        if(fileId == FILEID_NDEF_CAPABILITIES || fileId == FILEID_NDEF_DATA) {
-            vars[VAR_SELECTED_FILE] = fileId;
-        } else {
+        byte index = findFile(fileId);
+        if(index == FILE_NONE) {
             ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
         }
+        vars[VAR_SELECTED_FILE] = index;
     }
 
     /**
      * Process a READ BINARY command
      *
-     * This supports simple reads at any offset.
+     * This supports simple reads at any offset, with
+     * the file optionally given by short file identifier.
      *
      * The length of the returned data is limited
      * by the maximum R-APDU length as well as by
-     * the maximum read size NDEF_MAX_READ.
+     * the maximum read size of the session.
      *
      * @param apdu to process
      * @throws ISOException on error
@@ -472,54 +1515,239 @@ public final class NdefApplet extends Applet {
     private void processReadBinary(APDU apdu) throws ISOException {
         byte[] buffer = apdu.getBuffer();
 
-        // access the file
-        byte[] file = accessFileForRead(vars[VAR_SELECTED_FILE]);
+        // get the read offset, possibly selecting a file
+        short offset = getBinaryOffset(buffer);
 
-        // get and check the read offset
-        short offset = Util.getShort(buffer, ISO7816.OFFSET_P1);
-        if(offset < 0 || offset >= file.length) {
-            ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+        // check access to the file
+        byte index = (byte)vars[VAR_SELECTED_FILE];
+        accessFileForRead(index);
+
+        // determine the requested and the output size
+        short want = apdu.setOutgoingNoChaining();
+        short le = limitReadLength(want);
+
+        // send the requested data
+        short sent = sendFile(apdu, index, offset, le);
+
+        // chain responses for the rest if Le exceeds the maximum read size
+        if(FEATURE_RESPONSE_CHAINING && isResponseChaining() && le < want) {
+            short next = (short)(offset + sent);
+            short rest = getFileRemaining(index, next);
+            // chain up to Le, or optionally the whole file for Le=00
+            if(!(FEATURE_RESPONSE_CHAINING_WHOLE_FILE && want >= RESPONSE_MAX)
+                    && rest > (short)(want - sent)) {
+                rest = (short)(want - sent);
+            }
+            chainResponse(next, rest);
         }
+    }
 
-        // determine the output size
-        short le = apdu.setOutgoingNoChaining();
-        if(le > NDEF_MAX_READ) {
-            le = NDEF_MAX_READ;
+    /**
+     * Process a GET RESPONSE command
+     *
+     * Sends the next part of a chained READ BINARY
+     * response, again indicating the amount of data
+     * that remains using SW 61xx.
+     *
+     * @param apdu to process
+     * @throws ISOException on error
+     */
+    private void processGetResponse(APDU apdu) throws ISOException {
+        byte[] buffer = apdu.getBuffer();
+        short offset = vars[VAR_RESPONSE_OFFSET];
+        short remaining = vars[VAR_RESPONSE_REMAINING];
+        vars[VAR_RESPONSE_REMAINING] = 0;
+
+        // there must be a chained response
+        if(remaining == 0) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
         }
 
-        // adjust for end of file
-        short limit = (short)(offset + le);
-        if(limit < 0) {
-            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        // P1 and P2 must be zero
+        if(Util.getShort(buffer, ISO7816.OFFSET_P1) != 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
         }
-        if(limit >= file.length) {
-            le = (short)(file.length - offset);
+
+        // send the next part
+        short le = getReadLength(apdu);
+        if(le > remaining) {
+            le = remaining;
         }
+        short sent = sendFile(apdu, (byte)vars[VAR_SELECTED_FILE], offset, le);
 
-        // send the requested data
-        if(vars[VAR_SELECTED_FILE] == FILEID_NDEF_CAPABILITIES) {
+        // chain responses for the rest
+        chainResponse((short)(offset + sent), (short)(remaining - sent));
+    }
+
+    /**
+     * Indicate further data for response chaining
+     *
+     * Throws SW 61xx to indicate the amount of remaining
+     * data, unless there is none.
+     *
+     * @param offset of the remaining data in the selected file
+     * @param remaining amount of data
+     * @throws ISOException to indicate remaining data
+     */
+    private void chainResponse(short offset, short remaining) throws ISOException {
+        if(remaining > 0) {
+            vars[VAR_RESPONSE_OFFSET] = offset;
+            vars[VAR_RESPONSE_REMAINING] = remaining;
+            if(remaining >= RESPONSE_MAX) {
+                remaining = 0;
+            }
+            ISOException.throwIt((short)(ISO7816.SW_BYTES_REMAINING_00 | remaining));
+        }
+    }
+
+    /**
+     * @return true if responses should be chained in this session
+     */
+    private boolean isResponseChaining() {
+        byte protocol = APDU.getProtocol();
+        return (protocol & APDU.PROTOCOL_MEDIA_MASK) == APDU.PROTOCOL_MEDIA_DEFAULT
+                && (protocol & APDU.PROTOCOL_TYPE_MASK) == APDU.PROTOCOL_T0;
+    }
+
+    /**
+     * Send data from a file
+     *
+     * The length is adjusted for the end of the file.
+     *
+     * @param apdu being processed
+     * @param index of the file
+     * @param offset to start at
+     * @param len maximum amount of data to send
+     * @return amount of data sent
+     * @throws ISOException if the offset is invalid
+     */
+    private short sendFile(APDU apdu, byte index, short offset, short len) throws ISOException {
+        if(index == FILE_NDEF_CAPABILITIES) {
+            short capsLen = (short)capsFile.length;
+            if(offset >= capsLen) {
+                ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+            }
+            // adjust for end of file
+            if(len > (short)(capsLen - offset)) {
+                len = (short)(capsLen - offset);
+            }
             // send fixed capabilities
-            Util.arrayCopyNonAtomic(file, (short)0,
-                                    buffer, (short)0,
-                                    (short)file.length);
-            fixCaps(buffer, (short)0, (short)file.length);
-            apdu.setOutgoingLength(le);
-            apdu.sendBytesLong(buffer, offset, le);
+            apdu.setOutgoingLength(len);
+            apdu.sendBytesLong(capsCache, offset, len);
         } else {
+            short seg = (short)(offset >> DATA_SEGMENT_SHIFT);
+            short segOff = (short)(offset & DATA_SEGMENT_MASK);
+            // adjust for end of file
+            len = getDataAvailable(index, seg, segOff, len);
             // send directly
-            apdu.setOutgoingLength(le);
-            apdu.sendBytesLong(file, offset, le);
+            apdu.setOutgoingLength(len);
+            sendData(apdu, index, seg, segOff, len);
+        }
+        return len;
+    }
+
+    /**
+     * Determine the amount of data up to the end of a file
+     *
+     * @param index of the file
+     * @param offset to start at
+     * @return amount of data, at most 32767 bytes
+     */
+    private short getFileRemaining(byte index, short offset) {
+        if(offset < 0) {
+            return 0;
+        }
+        if(index == FILE_NDEF_CAPABILITIES) {
+            return (short)(capsFile.length - offset);
+        }
+        short seg = (short)(offset >> DATA_SEGMENT_SHIFT);
+        short segOff = (short)(offset & DATA_SEGMENT_MASK);
+        Object[] file = getFile(index);
+        if(seg >= (short)file.length || segOff >= (short)((byte[])file[seg]).length) {
+            return 0;
         }
+        return getDataAvailable(index, seg, segOff, (short)0x7FFF);
+    }
+
+    /**
+     * Process a READ BINARY command with offset data object
+     *
+     * This is the variant of READ BINARY introduced by
+     * mapping version 3.0, allowing access to offsets
+     * beyond 32767 in the data file.
+     *
+     * The command contains the offset as a three-byte ODO,
+     * the response contains the data wrapped in a DDO.
+     *
+     * @param apdu to process
+     * @throws ISOException on error
+     */
+    private void processReadBinaryODO(APDU apdu) throws ISOException {
+        byte[] buffer = apdu.getBuffer();
+        byte index = (byte)vars[VAR_SELECTED_FILE];
+
+        // check access to the file
+        accessFileForRead(index);
+
+        // only data files can be accessed using an ODO
+        if(index == FILE_NDEF_CAPABILITIES) {
+            ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+        }
+
+        // P1 and P2 must be zero
+        if(Util.getShort(buffer, ISO7816.OFFSET_P1) != 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+        }
+
+        // receive and check the offset data object
+        short lc = apdu.setIncomingAndReceive();
+        short cdata = apdu.getOffsetCdata();
+        if(lc != (short)(2 + ODO_LEN_OFFSET)
+                || buffer[cdata] != ODO_TAG_OFFSET
+                || buffer[(short)(cdata + 1)] != ODO_LEN_OFFSET) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+
+        // decode the read offset
+        short seg = getOffsetSegment(buffer, (short)(cdata + 2));
+        short segOff = getOffsetInSegment(buffer, (short)(cdata + 2));
+
+        // determine the output size, leaving room for the DDO header
+        short len = (short)(getReadLength(apdu) - 2);
+        if(len > 0x7F) {
+            len--;
+        }
+        if(len > 0xFF) {
+            len--;
+        }
+        if(len <= 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        // adjust for end of file
+        len = getDataAvailable(index, seg, segOff, len);
+
+        // send the DDO header followed by the data
+        short hdrLen = 0;
+        buffer[hdrLen++] = DDO_TAG_DATA;
+        hdrLen = UtilTLV.encodeLengthField(buffer, hdrLen, len);
+        apdu.setOutgoingLength((short)(hdrLen + len));
+        apdu.sendBytes((short)0, hdrLen);
+        sendData(apdu, index, seg, segOff, len);
     }
 
     /**
      * Process an UPDATE BINARY command
      *
-     * Supports simple writes at any offset.
+     * Supports simple writes at any offset, with the
+     * file optionally given by short file identifier.
      *
      * The amount of data that can be written in one
      * operation is limited both by maximum C-APDU
-     * length and the maximum write size NDEF_MAX_WRITE.
+     * length and the maximum write size of the session.
+     *
+     * Extended length data that does not fit into the
+     * APDU buffer is received and written in pieces.
      *
      * @param apdu to process
      * @throws ISOException on error
@@ -527,31 +1755,841 @@ public final class NdefApplet extends Applet {
     private void processUpdateBinary(APDU apdu) throws ISOException {
         byte[] buffer = apdu.getBuffer();
 
-        // access the file
-        byte[] file = accessFileForWrite(vars[VAR_SELECTED_FILE]);
+        // get the write offset, possibly selecting a file
+        short offset = getBinaryOffset(buffer);
 
-        // get and check the write offset
-        short offset = Util.getShort(buffer, ISO7816.OFFSET_P1);
-        if(offset < 0 || offset >= file.length) {
+        // check access to the file
+        byte index = (byte)vars[VAR_SELECTED_FILE];
+        accessFileForWrite(index);
+
+        short seg = (short)(offset >> DATA_SEGMENT_SHIFT);
+        short segOff = (short)(offset & DATA_SEGMENT_MASK);
+
+        // receive first part of data
+        short got = apdu.setIncomingAndReceive();
+        short lc = getWriteLength(apdu, got);
+
+        // collect chained commands
+        if(FEATURE_COMMAND_CHAINING
+                && (vars[VAR_CHAIN_ACTIVE] != 0 || apdu.isCommandChainingCLA())) {
+            lc = receiveChained(apdu, index, seg, segOff, got, lc);
+            // wait for the last command of the chain
+            if(apdu.isCommandChainingCLA()) {
+                return;
+            }
+            // write everything at once
+            writeData(apdu, chainBuffer, index, seg, segOff, (short)0, lc, lc);
+            return;
+        }
+
+        // file limit checks
+        if(getDataAvailable(index, seg, segOff, lc) != lc) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        // perform the update
+        writeData(apdu, buffer, index, seg, segOff, apdu.getOffsetCdata(), got, lc);
+    }
+
+    /**
+     * Receive data of a chained UPDATE BINARY command
+     *
+     * Appends the command data to the chaining buffer.
+     * The chain ends with the first command that does
+     * not indicate chaining, after which the collected
+     * data should be written.
+     *
+     * The chain is aborted on any error.
+     *
+     * @param apdu being processed
+     * @param index of the file
+     * @param seg segment of the write offset
+     * @param off offset of the write offset in seg
+     * @param got amount of received data in the APDU buffer
+     * @param len total amount of data in this command
+     * @return amount of data collected in the chain
+     * @throws ISOException on error
+     */
+    private short receiveChained(APDU apdu, byte index, short seg, short off, short got, short len) throws ISOException {
+        byte[] buffer = apdu.getBuffer();
+        short p1p2 = Util.getShort(buffer, ISO7816.OFFSET_P1);
+        short length = vars[VAR_CHAIN_LENGTH];
+
+        // start or continue the chain
+        if(vars[VAR_CHAIN_ACTIVE] == 0) {
+            length = 0;
+        } else if(vars[VAR_CHAIN_P1P2] != p1p2) {
+            vars[VAR_CHAIN_ACTIVE] = 0;
             ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
         }
 
-        // receive data
-        short lc = apdu.setIncomingAndReceive();
+        // check limits of the buffer and the file
+        short total = (short)(length + len);
+        if(len > (short)(chainBuffer.length - length)
+                || getDataAvailable(index, seg, off, total) != total) {
+            vars[VAR_CHAIN_ACTIVE] = 0;
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
 
-        // check the input size
-        if(lc > NDEF_MAX_WRITE) {
+        // collect the data
+        short pos = apdu.getOffsetCdata();
+        while(len > 0) {
+            // receive more data when needed
+            if(got == 0) {
+                got = apdu.receiveBytes(pos);
+            }
+            length = Util.arrayCopyNonAtomic(buffer, pos, chainBuffer, length, got);
+            len -= got;
+            got = 0;
+        }
+
+        // remember the state of the chain
+        if(apdu.isCommandChainingCLA()) {
+            vars[VAR_CHAIN_ACTIVE] = 1;
+            vars[VAR_CHAIN_P1P2] = p1p2;
+            vars[VAR_CHAIN_LENGTH] = length;
+        } else {
+            vars[VAR_CHAIN_ACTIVE] = 0;
+        }
+        return length;
+    }
+
+    /**
+     * Process an UPDATE BINARY command with offset data object
+     *
+     * This is the variant of UPDATE BINARY introduced by
+     * mapping version 3.0, allowing access to offsets
+     * beyond 32767 in the data file.
+     *
+     * The command contains the offset as a three-byte ODO
+     * followed by the data to be written wrapped in a DDO.
+     *
+     * @param apdu to process
+     * @throws ISOException on error
+     */
+    private void processUpdateBinaryODO(APDU apdu) throws ISOException {
+        byte[] buffer = apdu.getBuffer();
+        byte index = (byte)vars[VAR_SELECTED_FILE];
+
+        // check access to the file
+        accessFileForWrite(index);
+
+        // P1 and P2 must be zero
+        if(Util.getShort(buffer, ISO7816.OFFSET_P1) != 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+        }
+
+        // receive first part of data
+        short got = apdu.setIncomingAndReceive();
+        short lc = getWriteLength(apdu, got);
+        short cdata = apdu.getOffsetCdata();
+
+        // check the offset data object
+        if(got < (short)(2 + ODO_LEN_OFFSET + 2)
+                || buffer[cdata] != ODO_TAG_OFFSET
+                || buffer[(short)(cdata + 1)] != ODO_LEN_OFFSET) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+
+        // decode the write offset
+        short seg = getOffsetSegment(buffer, (short)(cdata + 2));
+        short segOff = getOffsetInSegment(buffer, (short)(cdata + 2));
+
+        // check the data object header
+        short pos = (short)(cdata + 2 + ODO_LEN_OFFSET);
+        if(buffer[pos] != DDO_TAG_DATA) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        short len = UtilTLV.decodeLengthField(buffer, (short)(pos + 1));
+        if(len < 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        pos += (short)(1 + UtilTLV.getLengthFieldLength(len));
+
+        // the header must have been received and match the data length
+        short hdrLen = (short)(pos - cdata);
+        if(hdrLen > got || (short)(hdrLen + len) != lc) {
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
 
         // file limit checks
-        short limit = (short)(offset + lc);
-        if(limit < 0 || limit >= file.length) {
+        if(getDataAvailable(index, seg, segOff, len) != len) {
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
 
         // perform the update
-        Util.arrayCopy(buffer, ISO7816.OFFSET_CDATA, file, offset, lc);
+        writeData(apdu, buffer, index, seg, segOff, pos, (short)(got - hdrLen), len);
+    }
+
+    /**
+     * Decode the offset of a READ/UPDATE BINARY command
+     *
+     * If bit 8 of P1 is set then P1 contains a short file
+     * identifier and P2 the offset. The identified file
+     * becomes the selected file, while identifier 0 keeps
+     * the current one. Otherwise P1 and P2 contain the
+     * offset into the selected file.
+     *
+     * @param buffer containing the command
+     * @return offset into the selected file
+     * @throws ISOException if P1 and P2 are invalid
+     */
+    private short getBinaryOffset(byte[] buffer) throws ISOException {
+        byte p1 = buffer[ISO7816.OFFSET_P1];
+        if(FEATURE_SHORT_FILE_IDS && (p1 & BINARY_P1_SFI_FLAG) != 0) {
+            if((p1 & BINARY_P1_SFI_RFU) != 0) {
+                ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+            }
+            // select the file unless the current one is referenced
+            byte sfi = (byte)(p1 & BINARY_P1_SFI_MASK);
+            if(sfi != 0) {
+                byte index = findFileBySFI(sfi);
+                if(index == FILE_NONE) {
+                    ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+                }
+                vars[VAR_SELECTED_FILE] = index;
+            }
+            // offset is in P2
+            return (short)(buffer[ISO7816.OFFSET_P2] & 0xFF);
+        }
+        // offset is in P1 and P2
+        short offset = Util.getShort(buffer, ISO7816.OFFSET_P1);
+        if(offset < 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+        }
+        return offset;
+    }
+
+    /**
+     * Determine the length of a read response
+     *
+     * This sets the APDU to outgoing mode and
+     * limits the length to our maximum read size.
+     *
+     * @param apdu being processed
+     * @return maximum length of response
+     */
+    private short getReadLength(APDU apdu) {
+        return limitReadLength(apdu.setOutgoingNoChaining());
+    }
+
+    /**
+     * Limit the length of a read response
+     *
+     * @param le requested by the host
+     * @return maximum length of response
+     */
+    private short limitReadLength(short le) {
+        short max = vars[VAR_MAX_READ];
+        if(le > max) {
+            le = max;
+        }
+        return le;
+    }
+
+    /**
+     * Determine and check the length of a write command
+     *
+     * @param apdu being processed
+     * @param got number of bytes received so far
+     * @return total length of command data
+     * @throws ISOException if the length is too large
+     */
+    private short getWriteLength(APDU apdu, short got) throws ISOException {
+        short lc = got;
+        if(FEATURE_EXTENDED_LENGTH) {
+            lc = apdu.getIncomingLength();
+        }
+        if(lc > vars[VAR_MAX_WRITE]) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        return lc;
+    }
+
+    /**
+     * Decode the segment index from a three-byte offset
+     *
+     * @param buf containing the offset
+     * @param off of the offset in buf
+     * @return index of the segment
+     */
+    private static short getOffsetSegment(byte[] buf, short off) {
+        return (short)(((buf[off] & 0xFF) << 2)
+                | ((buf[(short)(off + 1)] & 0xFF) >> 6));
+    }
+
+    /**
+     * Decode the segment offset from a three-byte offset
+     *
+     * @param buf containing the offset
+     * @param off of the offset in buf
+     * @return offset within the segment
+     */
+    private static short getOffsetInSegment(byte[] buf, short off) {
+        return (short)(Util.getShort(buf, (short)(off + 1)) & DATA_SEGMENT_MASK);
+    }
+
+    /**
+     * Determine the amount of data available in a data file
+     *
+     * @param index of the file
+     * @param seg segment of the starting position
+     * @param off offset of the starting position in seg
+     * @param max amount of data that is of interest
+     * @return amount of data available, at most max
+     * @throws ISOException if the position is invalid
+     */
+    private short getDataAvailable(byte index, short seg, short off, short max) throws ISOException {
+        Object[] file = getFile(index);
+        short count = (short)file.length;
+        // check the position
+        if(seg >= count || off >= (short)((byte[])file[seg]).length) {
+            ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+        }
+        // count up to max bytes
+        short avail = 0;
+        while(avail < max && seg < count) {
+            short n = (short)(((byte[])file[seg]).length - off);
+            short rem = (short)(max - avail);
+            if(n > rem) {
+                n = rem;
+            }
+            avail += n;
+            seg++;
+            off = 0;
+        }
+        return avail;
+    }
+
+    /**
+     * Send data from a data file
+     *
+     * Mirrored regions of the NDEF data file are
+     * overlaid on the stored data.
+     *
+     * The range must have been checked by the caller.
+     *
+     * @param apdu being processed
+     * @param index of the file
+     * @param seg segment to start at
+     * @param off offset to start at in seg
+     * @param len amount of data to send
+     */
+    private void sendData(APDU apdu, byte index, short seg, short off, short len) {
+        // mirroring applies to the first 32767 bytes of the data file
+        if(FEATURE_MIRRORING && index == FILE_NDEF_DATA && mirrorRegions != null
+                && seg < (short)(0x8000 >> DATA_SEGMENT_SHIFT)) {
+            sendMirrored(apdu, seg, off, len);
+        } else {
+            sendStored(apdu, index, seg, off, len);
+        }
+    }
+
+    /**
+     * Send data from the data file with mirrored regions
+     *
+     * Data is sent from the file up to the next region,
+     * which is then sent from the mirror text instead.
+     *
+     * The range must have been checked by the caller.
+     *
+     * @param apdu being processed
+     * @param seg segment to start at
+     * @param off offset to start at in seg
+     * @param len amount of data to send
+     */
+    private void sendMirrored(APDU apdu, short seg, short off, short len) {
+        short[] regions = mirrorRegions;
+        short pos = (short)((seg << DATA_SEGMENT_SHIFT) | off);
+        while(len > 0) {
+            short n = len;
+            boolean mirrored = false;
+            for(short entry = 0; entry < (short)regions.length; entry += MIRROR_ENTRY_SIZE) {
+                short start = regions[(short)(entry + MIRROR_OFF_FILE)];
+                short regionLen = regions[(short)(entry + MIRROR_OFF_LENGTH)];
+                if(regionLen == 0) {
+                    continue;
+                }
+                short end = (short)(start + regionLen);
+                if(pos >= start && pos < end) {
+                    // inside the region, send mirror text
+                    if(n > (short)(end - pos)) {
+                        n = (short)(end - pos);
+                    }
+                    short text = regions[(short)(entry + MIRROR_OFF_TEXT)];
+                    prepareMirror(text);
+                    text += (short)(pos - start);
+                    apdu.sendBytesLong(mirrorText, text, n);
+                    mirrored = true;
+                    break;
+                }
+                // stop at the start of the region
+                if(start > pos && n > (short)(start - pos)) {
+                    n = (short)(start - pos);
+                }
+            }
+            if(!mirrored) {
+                sendStored(apdu, FILE_NDEF_DATA, seg, off, n);
+            }
+            len -= n;
+            if(len > 0) {
+                // only reached for positions before the end of a region
+                pos += n;
+                seg = (short)(pos >> DATA_SEGMENT_SHIFT);
+                off = (short)(pos & DATA_SEGMENT_MASK);
+            }
+        }
+    }
+
+    /**
+     * Prepare mirror text for this session
+     *
+     * Renders the text of a region as ASCII hex when it
+     * is first sent in a session. For the counter region
+     * this also increments the read counter.
+     *
+     * The counter is incremented in RAM and written back
+     * with a single atomic copy. It saturates at 0xFFFFFF,
+     * after which it is no longer written.
+     *
+     * @param textOff of the region in the mirror text
+     */
+    private void prepareMirror(short textOff) {
+        byte flag = (textOff == MIRROR_TEXT_COUNTER) ? MIRROR_READY_COUNTER : MIRROR_READY_UID;
+        if((vars[VAR_MIRROR_READY] & flag) != 0) {
+            return;
+        }
+        vars[VAR_MIRROR_READY] |= flag;
+        byte[] text = mirrorText;
+        if(flag == MIRROR_READY_COUNTER) {
+            // increment a copy of the counter
+            Util.arrayCopyNonAtomic(mirrorCounter, (short)0, text, (short)0, MIRROR_COUNTER_SIZE);
+            for(short i = (short)(MIRROR_COUNTER_SIZE - 1); i >= 0; i--) {
+                if(text[i] != (byte)0xFF) {
+                    text[i]++;
+                    Util.arrayFillNonAtomic(text, (short)(i + 1), (short)(MIRROR_COUNTER_SIZE - 1 - i), (byte)0);
+                    // write back in one atomic operation
+                    Util.arrayCopy(text, (short)0, mirrorCounter, (short)0, MIRROR_COUNTER_SIZE);
+                    break;
+                }
+            }
+            encodeHex(text, (short)0, MIRROR_COUNTER_SIZE, text, MIRROR_TEXT_COUNTER);
+        } else {
+            encodeHex(mirrorUID, (short)0, (short)mirrorUID.length, text, MIRROR_TEXT_UID);
+        }
+    }
+
+    /**
+     * Encode bytes as upper-case ASCII hex
+     *
+     * @param src buffer containing bytes
+     * @param srcOff offset of bytes in src
+     * @param srcLen number of bytes
+     * @param dst buffer for the text
+     * @param dstOff offset for the text in dst
+     */
+    private static void encodeHex(byte[] src, short srcOff, short srcLen, byte[] dst, short dstOff) {
+        short end = (short)(srcOff + srcLen);
+        while(srcOff < end) {
+            byte b = src[srcOff++];
+            dst[dstOff++] = encodeNibble((byte)((b >> 4) & 0x0F));
+            dst[dstOff++] = encodeNibble((byte)(b & 0x0F));
+        }
+    }
+
+    /**
+     * @param nibble to encode
+     * @return nibble as an upper-case ASCII hex digit
+     */
+    private static byte encodeNibble(byte nibble) {
+        return (byte)(nibble < 10 ? ('0' + nibble) : ('A' - 10 + nibble));
+    }
+
+    /**
+     * Send stored data from a data file
+     *
+     * The range must have been checked by the caller.
+     *
+     * @param apdu being processed
+     * @param index of the file
+     * @param seg segment to start at
+     * @param off offset to start at in seg
+     * @param len amount of data to send
+     */
+    private void sendStored(APDU apdu, byte index, short seg, short off, short len) {
+        // staged data takes precedence
+        if(FEATURE_WRITE_STAGING && index == FILE_NDEF_DATA && vars[VAR_STAGED_END] != 0) {
+            apdu.sendBytesLong(dataStaging, (short)((seg << DATA_SEGMENT_SHIFT) | off), len);
+            return;
+        }
+        // send from the file
+        Object[] file = getFile(index);
+        while(len > 0) {
+            byte[] segment = (byte[])file[seg];
+            short n = (short)(segment.length - off);
+            if(n > len) {
+                n = len;
+            }
+            apdu.sendBytesLong(segment, off, n);
+            len -= n;
+            seg++;
+            off = 0;
+        }
+    }
+
+    /**
+     * Write data into a data file
+     *
+     * This performs the actual update for UPDATE BINARY,
+     * either directly or through the staging buffer, and
+     * refreshes access grants if the length field changed.
+     *
+     * Write modes and slots only apply to the main data
+     * file, additional files are always written directly.
+     *
+     * The range must have been checked by the caller.
+     *
+     * @param apdu being processed
+     * @param buffer containing received data, the APDU buffer or the chaining buffer
+     * @param index of the file
+     * @param seg segment to start at
+     * @param off offset to start at in seg
+     * @param pos of received data in buffer
+     * @param got amount of received data in buffer
+     * @param len total amount of data to write
+     */
+    private void writeData(APDU apdu, byte[] buffer, byte index, short seg, short off, short pos, short got, short len) {
+        boolean lengthWritten = (seg == 0 && off < getLengthSize(index));
+        boolean atomic = true;
+
+        if(index == FILE_NDEF_DATA) {
+            if(FEATURE_WRITE_STAGING && dataStaging != null) {
+                // staging starts when the length field is cleared
+                boolean begun = false;
+                if(vars[VAR_STAGED_END] == 0 && seg == 0 && off == 0
+                        && got >= 2 && Util.getShort(buffer, pos) == 0) {
+                    beginStaging();
+                    begun = true;
+                }
+                // stage the data if staging
+                if(vars[VAR_STAGED_END] != 0) {
+                    receiveStaged(apdu, buffer, (short)((seg << DATA_SEGMENT_SHIFT) | off), pos, got, len);
+                    // commit when the length field is written again,
+                    // including a length of zero to erase the file
+                    if(lengthWritten && !begun) {
+                        commitStaging();
+                        refreshAccess();
+                    }
+                    return;
+                }
+            }
+
+            if(FEATURE_WEAR_LEVELING && dataSlots.length > 1) {
+                short pending = vars[VAR_PENDING_SLOT];
+                // a new slot is used when the length field is cleared
+                boolean opened = false;
+                if(pending == 0 && seg == 0 && off == 0
+                        && got >= getLengthSize(index) && isLengthZero(buffer, pos)) {
+                    pending = (short)(dataSlot + 2);
+                    if(pending > (short)dataSlots.length) {
+                        pending = 1;
+                    }
+                    vars[VAR_PENDING_SLOT] = pending;
+                    opened = true;
+                }
+                // write to the pending slot if there is one
+                if(pending != 0) {
+                    // the pending slot is not visible, so atomicity is not needed
+                    receiveData(apdu, buffer, index, seg, off, pos, got, len, false);
+                    // activate the slot when the length field is written again,
+                    // including a length of zero to erase the file
+                    if(lengthWritten && !opened) {
+                        dataSlot = (byte)(pending - 1);
+                        vars[VAR_PENDING_SLOT] = 0;
+                        refreshAccess();
+                    }
+                    return;
+                }
+            }
+
+            // non-atomic writing is safe while the length field is zero
+            if(FEATURE_WRITE_NON_ATOMIC && dataWriteMode == WRITE_MODE_NON_ATOMIC) {
+                if(lengthWritten) {
+                    // clear the marker before setting the length field,
+                    // so that a tear in between leaves an empty file
+                    if(dataTorn) {
+                        dataTorn = false;
+                    }
+                } else if(isDataEmpty()) {
+                    // set the marker before writing
+                    if(!dataTorn) {
+                        dataTorn = true;
+                    }
+                    atomic = false;
+                }
+            }
+        }
+
+        // write directly
+        receiveData(apdu, buffer, index, seg, off, pos, got, len, atomic);
+
+        // re-evaluate access if the length field was written
+        if(lengthWritten) {
+            refreshAccess();
+        }
+    }
+
+    /**
+     * Begin staging writes to the data file
+     *
+     * Loads the current contents of the data file
+     * into the staging buffer so that partial writes
+     * do not lose existing data.
+     */
+    private void beginStaging() {
+        Object[] file = getDataFile();
+        short pos = 0;
+        for(short i = 0; i < (short)file.length; i++) {
+            byte[] segment = (byte[])file[i];
+            pos = Util.arrayCopyNonAtomic(segment, (short)0, dataStaging, pos, (short)segment.length);
+        }
+        vars[VAR_STAGED_END] = 2;
+    }
+
+    /**
+     * Commit staged writes to the data file
+     *
+     * The length field of the data file is cleared first
+     * so that an interrupted commit results in an empty
+     * file rather than a corrupted one. Then the staged
+     * data is written in one pass and finally the new
+     * length field is written.
+     *
+     * If the staged length field is zero the body is
+     * unreachable, so only the length field is cleared.
+     */
+    private void commitStaging() {
+        Object[] file = getDataFile();
+        byte[] first = (byte[])file[0];
+        short end = vars[VAR_STAGED_END];
+        // staging is finished
+        vars[VAR_STAGED_END] = 0;
+        // erasing only needs the length field
+        if(Util.getShort(dataStaging, (short)0) == 0) {
+            Util.arrayCopy(dataStaging, (short)0, first, (short)0, (short)2);
+            return;
+        }
+        // invalidate the stored message
+        JCSystem.beginTransaction();
+        Util.setShort(first, (short)0, (short)0);
+        JCSystem.commitTransaction();
+        // write the message body
+        short pos = 2;
+        short segPos = 0;
+        for(short i = 0; i < (short)file.length && pos < end; i++) {
+            byte[] segment = (byte[])file[i];
+            short segEnd = (short)(segPos + segment.length);
+            if(segEnd > end) {
+                segEnd = end;
+            }
+            if(pos < segEnd) {
+                Util.arrayCopyNonAtomic(dataStaging, pos, segment, (short)(pos - segPos), (short)(segEnd - pos));
+                pos = segEnd;
+            }
+            segPos += (short)segment.length;
+        }
+        // validate the new message
+        Util.arrayCopy(dataStaging, (short)0, first, (short)0, (short)2);
+    }
+
+    /**
+     * Recover from a torn non-atomic write sequence
+     *
+     * Non-atomic writes only happen while the length
+     * field is zero, so the file is already empty and
+     * the partial data is not reachable. Only the length
+     * field is cleared, in case it is not zero, to avoid
+     * rewriting the whole file during selection. The
+     * marker is cleared last so that an interrupted
+     * recovery will be repeated.
+     */
+    private void recoverData() {
+        byte[] first = (byte[])getDataFile()[0];
+        if(!isLengthZero(first, (short)0)) {
+            Util.arrayFillNonAtomic(first, (short)0, getLengthSize(FILE_NDEF_DATA), (byte)0);
+        }
+        dataTorn = false;
+    }
+
+    /**
+     * Receive data into the staging buffer
+     *
+     * @param apdu being processed
+     * @param buffer containing received data
+     * @param off offset to start at in the file
+     * @param pos of received data in buffer
+     * @param got amount of received data in buffer
+     * @param len total amount of data to write
+     */
+    private void receiveStaged(APDU apdu, byte[] buffer, short off, short pos, short got, short len) {
+        short end = (short)(off + len);
+        while(len > 0) {
+            // receive more data when needed
+            if(got == 0) {
+                pos = apdu.getOffsetCdata();
+                got = apdu.receiveBytes(pos);
+            }
+            if(got > len) {
+                got = len;
+            }
+            off = Util.arrayCopyNonAtomic(buffer, pos, dataStaging, off, got);
+            len -= got;
+            got = 0;
+        }
+        // remember the extent of staged data
+        if(end > vars[VAR_STAGED_END]) {
+            vars[VAR_STAGED_END] = end;
+        }
+    }
+
+    /**
+     * Receive data into a data file
+     *
+     * Data already in the buffer will be written first,
+     * after which further parts of the command data will be
+     * received and written until LEN bytes have been written.
+     *
+     * The range must have been checked by the caller.
+     *
+     * @param apdu being processed
+     * @param buffer containing received data
+     * @param index of the file
+     * @param seg segment to start at
+     * @param off offset to start at in seg
+     * @param pos of received data in buffer
+     * @param got amount of received data in buffer
+     * @param len total amount of data to write
+     * @param atomic true if each part should be written atomically
+     */
+    private void receiveData(APDU apdu, byte[] buffer, byte index, short seg, short off, short pos, short got, short len, boolean atomic) {
+        Object[] file = getFile(index);
+        while(len > 0) {
+            // receive more data when needed
+            if(got == 0) {
+                pos = apdu.getOffsetCdata();
+                got = apdu.receiveBytes(pos);
+            }
+            // write as much as possible into the current segment
+            byte[] segment = (byte[])file[seg];
+            short n = (short)(segment.length - off);
+            if(n > got) {
+                n = got;
+            }
+            if(atomic) {
+                Util.arrayCopy(buffer, pos, segment, off, n);
+            } else {
+                Util.arrayCopyNonAtomic(buffer, pos, segment, off, n);
+            }
+            pos += n;
+            got -= n;
+            len -= n;
+            off += n;
+            // continue in the next segment
+            if(off == (short)segment.length) {
+                seg++;
+                off = 0;
+            }
+        }
+    }
+
+    /**
+     * @param index of a data file
+     * @return size of the length field of the file, zero if none
+     */
+    private short getLengthSize(byte index) {
+        byte ccTag = fileTags[index];
+        if(ccTag == CC_TAG_EXTENDED_NDEF_FILE_CONTROL) {
+            return 4;
+        }
+        if(ccTag == CC_TAG_PROPRIETARY_FILE_CONTROL) {
+            return 0;
+        }
+        return 2;
+    }
+
+    /**
+     * Get a data file as currently seen by the host
+     *
+     * @param index of the file
+     * @return array of segments of the file
+     */
+    private Object[] getFile(byte index) {
+        if(index == FILE_NDEF_DATA) {
+            return getDataFile();
+        }
+        return (Object[])fileData[index];
+    }
+
+    /**
+     * Get the data file as currently seen by the host
+     *
+     * This is the active slot, or the slot being
+     * written during a write sequence.
+     *
+     * @return array of segments of the data file
+     */
+    private Object[] getDataFile() {
+        short slot = dataSlot;
+        if(FEATURE_WEAR_LEVELING) {
+            short pending = vars[VAR_PENDING_SLOT];
+            if(pending != 0) {
+                slot = (short)(pending - 1);
+            }
+        }
+        return (Object[])dataSlots[slot];
+    }
+
+    /**
+     * Check if the data file is empty
+     *
+     * This always checks the active slot.
+     *
+     * @return true if the data length field is zero
+     */
+    private boolean isDataEmpty() {
+        Object[] file = (Object[])dataSlots[dataSlot];
+        return isLengthZero((byte[])file[0], (short)0);
+    }
+
+    /**
+     * Check if a data file is empty
+     *
+     * @param index of the file
+     * @return true if the length field is zero
+     */
+    private boolean isFileEmpty(byte index) {
+        if(index == FILE_NDEF_DATA) {
+            return isDataEmpty();
+        }
+        Object[] file = (Object[])fileData[index];
+        return Util.getShort((byte[])file[0], (short)0) == 0;
+    }
+
+    /**
+     * Check if a data length field is zero
+     *
+     * @param buf containing the length field
+     * @param off of the length field in buf
+     * @return true if the length field is zero
+     */
+    private boolean isLengthZero(byte[] buf, short off) {
+        if(dataExtended) {
+            if(Util.getShort(buf, off) != 0) {
+                return false;
+            }
+            off += 2;
+        }
+        return Util.getShort(buf, off) == 0;
     }
 
     /**
@@ -561,10 +2599,11 @@ public final class NdefApplet extends Applet {
      * if an operation can currently be allowed within the
      * policy specified in ACCESS.
      *
+     * @param index of the file to be accessed
      * @param access policy to be checked
      * @return true if access granted, false otherwise
      */
-    private boolean checkAccess(byte[] data, byte access) {
+    private boolean checkAccess(byte index, byte access) {
         if(!FEATURE_ADVANCED_ACCESS_CONTROL) {
             // simple access control
             return access == FILE_ACCESS_OPEN;
@@ -579,7 +2618,7 @@ public final class NdefApplet extends Applet {
                 case FILE_ACCESS_PROP_CONTACT_ONLY:
                     return media == APDU.PROTOCOL_MEDIA_DEFAULT;
                 case FILE_ACCESS_PROP_WRITE_ONCE:
-                    return data[0] == 0 && data[1] == 0;
+                    return isFileEmpty(index);
                 default:
                 case FILE_ACCESS_NONE:
                     return false;
@@ -594,11 +2633,11 @@ public final class NdefApplet extends Applet {
      * so that we do not have to present a proprietary
      * policy to unsuspecting host devices.
      *
-     * @param data of the file for which to fix
      * @param access policy for to fix
+     * @param granted result of checking the policy
      * @return a fixed access policy
      */
-    private byte fixAccess(byte[] data, byte access) {
+    private byte fixAccess(byte access, boolean granted) {
         // figure out the right policy
         switch(access) {
             // by default we pass through
@@ -607,8 +2646,7 @@ public final class NdefApplet extends Applet {
             // these two require fixing
             case FILE_ACCESS_PROP_CONTACT_ONLY:
             case FILE_ACCESS_PROP_WRITE_ONCE:
-                return (checkAccess(data, access))
-                        ? FILE_ACCESS_OPEN : FILE_ACCESS_NONE;
+                return granted ? FILE_ACCESS_OPEN : FILE_ACCESS_NONE;
         }
     }
 
@@ -618,35 +2656,25 @@ public final class NdefApplet extends Applet {
      * This function serves to perform precondition checks
      * before actually operating on a file in a read operation.
      *
-     * If this function succeeds then the given fileId was
+     * If this function succeeds then the given file was
      * valid, security access has been granted and reading
      * of data for this file is possible.
      *
-     * @param fileId of the file to be read
-     * @return data array of the file
+     * Access decisions are taken from the session grants
+     * prepared by refreshAccess().
+     *
+     * @param index of the file to be read
      * @throws ISOException on error
      */
-    private byte[] accessFileForRead(short fileId) throws ISOException {
-        byte[] file = null;
-        byte access = FILE_ACCESS_NONE;
-        // select relevant data
-        if(fileId == FILEID_NDEF_CAPABILITIES) {
-            file = capsFile;
-            access = FILE_ACCESS_OPEN;
-        }
-        if(fileId == FILEID_NDEF_DATA) {
-            file = dataFile;
-            access = dataReadAccess;
-        }
+    private void accessFileForRead(byte index) throws ISOException {
         // check that we got anything
-        if(file == null) {
+        if(index == FILE_NONE) {
             ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
         }
         // perform access checks
-        if(!checkAccess(file, access)) {
+        if((fileGrants[index] & GRANT_READ) == 0) {
             ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
         }
-        return file;
     }
 
     /**
@@ -655,35 +2683,29 @@ public final class NdefApplet extends Applet {
      * This function serves to perform precondition checks
      * before actually operating on a file in a write operation.
      *
-     * If this function succeeds then the given fileId was
+     * If this function succeeds then the given file was
      * valid, security access has been granted and writing
      * of data for this file is possible.
      *
-     * @param fileId of the file to be written
-     * @return data array of the file
+     * Access decisions are taken from the session grants
+     * prepared by refreshAccess().
+     *
+     * @param index of the file to be written
      * @throws ISOException on error
      */
-    private byte[] accessFileForWrite(short fileId) throws ISOException {
-        byte[] file = null;
-        byte access = FILE_ACCESS_NONE;
+    private void accessFileForWrite(byte index) throws ISOException {
         // CC can not be written
-        if(fileId == FILEID_NDEF_CAPABILITIES) {
+        if(index == FILE_NDEF_CAPABILITIES) {
             ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
         }
-        // select relevant data
-        if(fileId == FILEID_NDEF_DATA) {
-            file = dataFile;
-            access = dataWriteAccess;
-        }
-        // check that we got something
-        if(file == null) {
+        // check that we got anything
+        if(index == FILE_NONE) {
             ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
         }
         // perform access checks
-        if(!checkAccess(file, access)) {
+        if((fileGrants[index] & GRANT_WRITE) == 0) {
             ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
         }
-        return file;
     }
 
 }
@@ -94,6 +94,49 @@ public final class UtilTLV {
         return (pos == (short)(offset+length));
     }
 
+    /**
+     * \brief Check the consistency of the TLV structure and index its tags in one pass.
+     *
+     * Positions of tags from tagBase up to tagBase+index.length-1 are recorded
+     * in the index, so that they can be looked up without searching the structure
+     * again. Only the first occurrence of each tag is recorded, absent tags are
+     * recorded as -1.
+     *
+     * \param tlv The array containing the TLV-encoded object to index.
+     *
+     * \param offset The position at which the TLV structure begins.
+     *
+     * \param length The length of the TLV structure.
+     *
+     * \param tagBase The first tag to record, corresponding to index[0].
+     *
+     * \param index The array receiving the tag positions.
+     *
+     * \return True if the TLV structure is valid, else false.
+     */
+    public static boolean indexTags(byte[] tlv, short offset, short length, byte tagBase, short[] index) {
+        short pos = offset;
+        short len;
+        short slot;
+
+        for(slot = 0; slot < (short)index.length; slot++) {
+            index[slot] = -1;
+        }
+
+        while(pos < (short)(length+offset-1)) {
+            slot = (short)((tlv[pos] & 0xFF) - (tagBase & 0xFF));
+            if(slot >= 0 && slot < (short)index.length && index[slot] < 0) {
+                index[slot] = pos;
+            }
+            len = decodeLengthField(tlv, (short)(pos+1));
+            if(len < 0) {
+                return false;
+            }
+            pos += 1 + getLengthFieldLength(len) + len;
+        }
+        return (pos == (short)(offset+length));
+    }
+
     /**
      * \brief Decode the length field of a TLV-entry.
      *
@@ -133,6 +176,32 @@ public final class UtilTLV {
         }
     }
 
+    /**
+     * \brief Encode the length field of a TLV-entry.
+     *
+     * This is the inverse of decodeLengthField(), using the shortest possible encoding.
+     *
+     * \param buf The buffer to write the length field to.
+     *
+     * \param offset The offset at where the length field should start.
+     *
+     * \param length The (positive) length to encode.
+     *
+     * \return The offset following the length field.
+     */
+    public static short encodeLengthField(byte[] buf, short offset, short length) {
+        if(length < 128) {
+            buf[offset++] = (byte)length;
+        } else if(length < 256) {
+            buf[offset++] = (byte)0x81;
+            buf[offset++] = (byte)length;
+        } else {
+            buf[offset++] = (byte)0x82;
+            offset = Util.setShort(buf, offset, length);
+        }
+        return offset;
+    }
+
     /**
      * \brief Get the length of the length field of a TLV-entry.
      *
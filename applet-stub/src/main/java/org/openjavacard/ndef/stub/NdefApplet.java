@@ -39,11 +39,21 @@ import javacard.framework.Util;
  *   Version 2.0
  *
  * Conformity remarks:
- *   1. The NDEF data file is restricted in size to the maximum
- *      size of initialization data on the specific platform.
+ *   1. The size of the NDEF data file is provided by the service
+ *      and reflected in the capability container.
  *   2. No file control information (FCI) is returned in SELECT responses
  *      as allowed by specification requirement RQ_T4T_NDA_034.
  *   3. Proprietary files are not being used.
+ *   4. Writes are buffered in transient memory and passed to the
+ *      service when NLEN is committed. The size of writable
+ *      messages is limited by NDEF_BUFFER_SIZE and the APDU buffer.
+ *      Services may also render the file into the same buffer.
+ *      Both require the service to implement NdefStreamService.
+ *   5. Multiple NDEF data files can be served by different services,
+ *      each listed with an NDEF file control TLV in the capability
+ *      container. Mapping version 2.0 defines only one such TLV, so
+ *      standard readers will only use the first file. Sizes are
+ *      updated when the capability container is selected.
  *
  */
 public final class NdefApplet extends Applet {
@@ -57,11 +67,30 @@ public final class NdefApplet extends Applet {
     private static final short FILEID_NONE              = (short)0x0000;
     private static final short FILEID_NDEF_CAPABILITIES = (short)0xE103;
     private static final short FILEID_NDEF_DATA         = (short)0xE104;
+    private static final short FILEID_MF                = (short)0x3F00;
+    private static final short FILEID_INVALID           = (short)0xFFFF;
+
+    /* Service index when none is selected */
+    private static final byte SERVICE_NONE = (byte)-1;
+
+    /* Layout of service entries in install data */
+    private static final byte SERVICE_OFF_FILEID  = 0;
+    private static final byte SERVICE_OFF_ID      = 2;
+    private static final byte SERVICE_OFF_AID_LEN = 3;
+    private static final byte SERVICE_OFF_AID     = 4;
+
+    /* Limits for service AIDs */
+    private static final byte SERVICE_AID_MIN = 5;
+    private static final byte SERVICE_AID_MAX = 16;
 
     /* File access specifications */
     private static final byte FILE_ACCESS_OPEN = (byte)0x00;
     private static final byte FILE_ACCESS_NONE = (byte)0xFF;
 
+    /* Offsets in the NDEF data file */
+    private static final short NDEF_OFF_NLEN = 0;
+    private static final short NDEF_OFF_DATA = 2;
+
     /* Parameters for SELECT */
     private static final byte SELECT_P1_BY_FILEID     = (byte)0x00;
     private static final byte SELECT_P2_FIRST_OR_ONLY = (byte)0x0C;
@@ -73,6 +102,8 @@ public final class NdefApplet extends Applet {
     private static final byte CC_LEN_HEADER = 7;
     private static final byte CC_TAG_NDEF_FILE_CONTROL = 0x04;
     private static final byte CC_LEN_NDEF_FILE_CONTROL = 6;
+    private static final byte CC_OFF_NDEF_FILE_SIZE = 4;
+    private static final byte CC_OFF_NDEF_FILE_WRITE = 7;
 
     /**
      * Configuration: maximum read block size
@@ -84,6 +115,32 @@ public final class NdefApplet extends Applet {
      */
     private static final short NDEF_MAX_WRITE = 128;
 
+    /**
+     * Configuration: maximum number of services
+     *
+     * Can not be larger than 15 because connections
+     * are tracked in a transient bit mask.
+     */
+    private static final byte MAX_SERVICES = 8;
+
+    /**
+     * Configuration: support for rendering services
+     *
+     * If enabled services may render their file on
+     * SELECT into the data buffer. The buffer is only
+     * allocated if rendering or writing is enabled.
+     */
+    private static final boolean FEATURE_RENDERING = true;
+
+    /**
+     * Configuration: size of the data buffer
+     *
+     * This is the maximum size of a writable or rendered
+     * data file, including NLEN, and is allocated in
+     * transient memory.
+     */
+    private static final short NDEF_BUFFER_SIZE = 256;
+
     /**
      * Configuration: read access
      */
@@ -91,6 +148,9 @@ public final class NdefApplet extends Applet {
 
     /**
      * Configuration: write access
+     *
+     * Writing is disabled by default. When enabled the
+     * service is responsible for validating written data.
      */
     private static final byte NDEF_WRITE_ACCESS = FILE_ACCESS_NONE;
 
@@ -98,25 +158,39 @@ public final class NdefApplet extends Applet {
     private static short[] vars;
     /** Index for currently selected file */
     private static final byte VAR_SELECTED_FILE = (byte)0;
+    /** Index for service of the currently selected file */
+    private static final byte VAR_SELECTED_SERVICE = (byte)1;
+    /** Index for mask of services connected in this session */
+    private static final byte VAR_CONNECTED = (byte)2;
+    /** Index for length of rendered data, negative if not rendered */
+    private static final byte VAR_RENDERED_LENGTH = (byte)3;
+    /** Index for write state, non-zero while written data is buffered */
+    private static final byte VAR_WRITE_PENDING = (byte)4;
     /** Number of transient variables */
-    private static final short NUM_VARS = (short)1;
-
-    /** Transient references */
-    private static Object[] refs;
-    /** Index for reference to service */
-    private static final byte REF_SERVICE = (byte)0;
-    /** Index for reference to data */
-    private static final byte REF_DATA = (byte)1;
-    /** Number of transient references */
-    private static final short NUM_REFS = (short)2;
-
-    /** ID of the service */
-    private static byte   serviceID;
-    /** AID of the service */
-    private static byte[] serviceAID;
+    private static final short NUM_VARS = (short)5;
+
+    /** Number of services */
+    private static byte    numServices;
+    /** File IDs of the services */
+    private static short[] serviceFileIds;
+    /** IDs of the services */
+    private static byte[]  serviceIDs;
+    /** AIDs of the services (byte arrays) */
+    private static Object[] serviceAIDs;
+
+    /** Service objects (transient until reset, resolved lazily) */
+    private static Object[] serviceObjects;
+    /** Data arrays of services without streaming, retrieved per session */
+    private static Object[] serviceData;
+    /** Versions of service data reflected in capsFile */
+    private static short[] serviceVersions;
+    /** Lengths of service data as of serviceVersions */
+    private static short[] serviceLengths;
 
     /** NDEF capability file contents */
     private static byte[] capsFile;
+    /** Buffer for data written or rendered in this session, null if unused */
+    private static byte[] dataBuffer;
 
     /**
      * Installs an NDEF applet
@@ -160,6 +234,9 @@ public final class NdefApplet extends Applet {
      * This will construct and initialize an instance
      * of this applet according to the provided app data.
      *
+     * App data is either a list of service entries or,
+     * for a single service, just its ID and AID.
+     *
      * @param buf containing application data
      * @param off offset of app data in buf
      * @param len length of app data in buf
@@ -167,28 +244,143 @@ public final class NdefApplet extends Applet {
     protected NdefApplet(byte[] buf, short off, byte len) {
         // create transient variables
         vars = JCSystem.makeTransientShortArray(NUM_VARS, JCSystem.CLEAR_ON_DESELECT);
-        refs = JCSystem.makeTransientObjectArray(NUM_REFS, JCSystem.CLEAR_ON_DESELECT);
-        // create capabilities files
-        capsFile = makeCaps((short)0);
+        // create data buffer if writing or rendering is possible
+        if(NDEF_WRITE_ACCESS != FILE_ACCESS_NONE || FEATURE_RENDERING) {
+            dataBuffer = JCSystem.makeTransientByteArray(NDEF_BUFFER_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        }
         // process install data
-        if(len < 6 || len > 17) {
+        byte count = countServices(buf, off, len);
+        if(count > 0) {
+            // list of service entries
+            makeServices(count);
+            short pos = off;
+            for(byte index = 0; index < count; index++) {
+                byte aidLen = buf[(short)(pos + SERVICE_OFF_AID_LEN)];
+                addService(index,
+                        Util.getShort(buf, (short)(pos + SERVICE_OFF_FILEID)),
+                        buf[(short)(pos + SERVICE_OFF_ID)],
+                        buf, (short)(pos + SERVICE_OFF_AID), aidLen);
+                pos += (short)(SERVICE_OFF_AID + aidLen);
+            }
+        } else if(len > SERVICE_AID_MIN && len <= (byte)(SERVICE_AID_MAX + 1)) {
+            // first byte is the service ID, rest is the service AID
+            makeServices((byte)1);
+            addService((byte)0, FILEID_NDEF_DATA, buf[off],
+                    buf, (short)(off + 1), (byte)(len - 1));
+        } else {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        // create capabilities files
+        capsFile = makeCaps();
+    }
+
+    /**
+     * Count service entries in install data
+     *
+     * @param buf containing application data
+     * @param off offset of app data in buf
+     * @param len length of app data in buf
+     * @return number of entries or -1 if the data is not a valid list
+     */
+    private byte countServices(byte[] buf, short off, byte len) {
+        byte count = 0;
+        short pos = off;
+        short end = (short)(off + len);
+        while(pos < end) {
+            // check entry header
+            if((short)(pos + SERVICE_OFF_AID) > end) {
+                return -1;
+            }
+            // check the AID
+            byte aidLen = buf[(short)(pos + SERVICE_OFF_AID_LEN)];
+            if(aidLen < SERVICE_AID_MIN || aidLen > SERVICE_AID_MAX) {
+                return -1;
+            }
+            pos += (short)(SERVICE_OFF_AID + aidLen);
+            count++;
+        }
+        // must end exactly at the end of data
+        if(pos != end) {
+            return -1;
+        }
+        return count;
+    }
+
+    /**
+     * Allocate the service tables
+     *
+     * @param count of services
+     */
+    private void makeServices(byte count) {
+        if(count > MAX_SERVICES) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        numServices = count;
+        serviceFileIds = new short[count];
+        serviceIDs = new byte[count];
+        serviceAIDs = new Object[count];
+        serviceObjects = JCSystem.makeTransientObjectArray(count, JCSystem.CLEAR_ON_RESET);
+        serviceData = JCSystem.makeTransientObjectArray(count, JCSystem.CLEAR_ON_DESELECT);
+        serviceVersions = new short[count];
+        serviceLengths = new short[count];
+    }
+
+    /**
+     * Add a service to the service tables
+     *
+     * @param index of the service
+     * @param fileId to serve the service as
+     * @param serviceID of the service
+     * @param buf containing the AID
+     * @param aidOff offset of the AID in buf
+     * @param aidLen length of the AID
+     */
+    private void addService(byte index, short fileId, byte serviceID,
+                            byte[] buf, short aidOff, byte aidLen) {
+        // reject reserved file IDs
+        if(fileId == FILEID_NONE || fileId == FILEID_NDEF_CAPABILITIES
+                || fileId == FILEID_MF || fileId == FILEID_INVALID) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        // reject duplicate file IDs
+        if(findService(fileId) != SERVICE_NONE) {
             ISOException.throwIt(ISO7816.SW_WRONG_DATA);
         }
-        // first byte is the service ID
-        serviceID = buf[off++]; len--;
-        // rest is the service AID
-        serviceAID = new byte[len];
-        Util.arrayCopyNonAtomic(buf, off, serviceAID, (short)0, len);
+        // remember the service
+        byte[] aid = new byte[aidLen];
+        Util.arrayCopyNonAtomic(buf, aidOff, aid, (short)0, aidLen);
+        serviceFileIds[index] = fileId;
+        serviceIDs[index] = serviceID;
+        serviceAIDs[index] = aid;
+    }
+
+    /**
+     * Find the service serving a file
+     *
+     * @param fileId to look for
+     * @return index of the service or SERVICE_NONE
+     */
+    private byte findService(short fileId) {
+        for(byte index = 0; index < numServices; index++) {
+            if(serviceFileIds[index] == fileId) {
+                return index;
+            }
+        }
+        return SERVICE_NONE;
     }
 
     /**
      * Create and initialize the CAPABILITIES file
      *
-     * @param dataSize to be allocated
+     * Contains one NDEF file control TLV per service. Only
+     * the first is defined by mapping version 2.0, readers
+     * that follow the specification will ignore the others.
+     *
      * @return an array for use as the CC file
      */
-    private byte[] makeCaps(short dataSize) {
-        short capsLen = (short)(CC_LEN_HEADER + 2 + CC_LEN_NDEF_FILE_CONTROL);
+    private byte[] makeCaps() {
+        short capsLen = (short)(CC_LEN_HEADER
+                + numServices * (2 + CC_LEN_NDEF_FILE_CONTROL));
         byte[] caps = new byte[capsLen];
 
         short pos = 0;
@@ -202,17 +394,20 @@ public final class NdefApplet extends Applet {
         // maximum write size
         pos = Util.setShort(caps, pos, NDEF_MAX_WRITE);
 
-        // NDEF File Control TLV
-        caps[pos++] = CC_TAG_NDEF_FILE_CONTROL;
-        caps[pos++] = CC_LEN_NDEF_FILE_CONTROL;
-        // file ID
-        pos = Util.setShort(caps, pos, FILEID_NDEF_DATA);
-        // file size
-        pos = Util.setShort(caps, pos, dataSize);
-        // read access
-        caps[pos++] = NDEF_READ_ACCESS;
-        // write access
-        caps[pos++] = NDEF_WRITE_ACCESS;
+        for(byte index = 0; index < numServices; index++) {
+            // NDEF File Control TLV
+            caps[pos++] = CC_TAG_NDEF_FILE_CONTROL;
+            caps[pos++] = CC_LEN_NDEF_FILE_CONTROL;
+            // file ID
+            pos = Util.setShort(caps, pos, serviceFileIds[index]);
+            // file size
+            pos = Util.setShort(caps, pos, getAdvertisedSize((short)0,
+                    NDEF_WRITE_ACCESS != FILE_ACCESS_NONE));
+            // read access
+            caps[pos++] = NDEF_READ_ACCESS;
+            // write access
+            caps[pos++] = NDEF_WRITE_ACCESS;
+        }
 
         // check consistency
         if(pos != capsLen) {
@@ -224,39 +419,203 @@ public final class NdefApplet extends Applet {
     }
 
     /**
-     * @return true if the stub is connected to a service
+     * Get the file size to advertise in the CC
+     *
+     * If writing is possible the CC will advertise
+     * at least the size of the write buffer.
+     *
+     * @param length of the service data
+     * @param writable true if the service accepts writes
+     * @return size to advertise
+     */
+    private short getAdvertisedSize(short length, boolean writable) {
+        if(writable && length < NDEF_BUFFER_SIZE) {
+            return NDEF_BUFFER_SIZE;
+        }
+        return length;
+    }
+
+    /**
+     * Connect to all backend services
+     *
+     * Used when selecting the capability container, so
+     * that it reflects the current sizes of all files.
+     * Services that can not be reached are skipped and
+     * will be reported when their file is selected.
      */
-    private boolean isConnected() {
-        return refs[REF_SERVICE] != null && refs[REF_DATA] != null;
+    private void connectServices() {
+        for(byte index = 0; index < numServices; index++) {
+            tryConnectService(index);
+        }
     }
 
     /**
-     * Attempt to connect to the backend service
+     * Connect to a backend service
+     *
+     * @param index of the service
+     * @throws ISOException if the service is not available
      */
-    private void connectService() {
-        NdefService service = null;
+    private void connectService(byte index) throws ISOException {
+        if(!tryConnectService(index)) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+    }
+
+    /**
+     * Attempt to connect to a backend service
+     *
+     * Services are connected once per session, when the
+     * capability container or their file is first selected.
+     *
+     * The service object is cached until the card is reset
+     * and is validated by retrieving the data version from
+     * it. Only if that fails will the service be resolved
+     * again. Services without streaming are asked for their
+     * data array in every session.
+     *
+     * The capability container is updated when the
+     * data version changes or the service was resolved.
+     *
+     * @param index of the service
+     * @return true if the service is connected
+     */
+    private boolean tryConnectService(byte index) {
+        short mask = (short)(1 << index);
+        // check if already connected in this session
+        if((vars[VAR_CONNECTED] & mask) != 0) {
+            return true;
+        }
+        boolean resolved = false;
+        // try the cached service first
+        Shareable service = (Shareable)serviceObjects[index];
+        short version = getServiceVersion(index, service);
+        // reconnect if the cached service failed
+        if(version < 0) {
+            service = resolveService(index);
+            version = getServiceVersion(index, service);
+            resolved = true;
+        }
+        // check that we got a valid version
+        if(version < 0) {
+            return false;
+        }
+        // refresh the CC if data has changed
+        if(resolved || version != serviceVersions[index]) {
+            if(!refreshCaps(index, service, version)) {
+                return false;
+            }
+        }
+        // remember the connection
+        vars[VAR_CONNECTED] |= mask;
+        return true;
+    }
+
+    /**
+     * Refresh the capability container
+     *
+     * Updates the size and write access of the data
+     * file in the CC with the current data length and
+     * the capabilities of the service.
+     *
+     * @param index of the service
+     * @param service to query
+     * @param version of the service data
+     * @return true if the CC was updated
+     */
+    private boolean refreshCaps(byte index, Shareable service, short version) {
+        // get the data length, which is the version without streaming
+        short length = version;
+        if(service instanceof NdefStreamService) {
+            length = -1;
+            try {
+                length = ((NdefStreamService)service).getLength();
+            } catch (SecurityException e) {
+                // service is no longer accessible
+            }
+        }
+        if(length < 0) {
+            return false;
+        }
+        // find the file control TLV in the CC
+        short tlvOff = (short)(CC_LEN_HEADER
+                + index * (2 + CC_LEN_NDEF_FILE_CONTROL));
+        // only streaming services accept writes
+        boolean writable = isWritable(service);
+        // update size, access and version atomically
+        JCSystem.beginTransaction();
+        Util.setShort(capsFile, (short)(tlvOff + CC_OFF_NDEF_FILE_SIZE),
+                getAdvertisedSize(length, writable));
+        capsFile[(short)(tlvOff + CC_OFF_NDEF_FILE_WRITE)] =
+                writable ? NDEF_WRITE_ACCESS : FILE_ACCESS_NONE;
+        serviceLengths[index] = length;
+        serviceVersions[index] = version;
+        JCSystem.commitTransaction();
+        return true;
+    }
+
+    /**
+     * Resolve a backend service
+     *
+     * Looks up the service and updates the cached
+     * reference, clearing it if resolution fails.
+     *
+     * @param index of the service
+     * @return the service object or null
+     */
+    private Shareable resolveService(byte index) {
+        Shareable service = null;
         // get AID object for service
-        AID aid = JCSystem.lookupAID(serviceAID, (short)0, (byte)serviceAID.length);
+        byte[] aidBytes = (byte[])serviceAIDs[index];
+        AID aid = JCSystem.lookupAID(aidBytes, (short)0, (byte)aidBytes.length);
         if(aid != null) {
             // get service object
-            Shareable share = JCSystem.getAppletShareableInterfaceObject(aid, serviceID);
-            // cast the service object
+            Shareable share = JCSystem.getAppletShareableInterfaceObject(aid, serviceIDs[index]);
+            // check the type of the service object
             if(share instanceof NdefService) {
-                service = (NdefService)share;
+                service = share;
             }
         }
-        // check that we got a valid object
-        if(service == null) {
-            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
-        }
-        // retrieve the data array
-        byte[] data = service.getData();
-        if(data == null) {
-            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        // update the cache
+        serviceObjects[index] = service;
+        return service;
+    }
+
+    /**
+     * Retrieve the data version from the given service
+     *
+     * Services without streaming have no version. Their
+     * data array is retrieved instead and its length is
+     * used as the version.
+     *
+     * @param index of the service
+     * @param service to query, may be null
+     * @return the data version or -1 on failure
+     */
+    private short getServiceVersion(byte index, Shareable service) {
+        short version = -1;
+        try {
+            if(service instanceof NdefStreamService) {
+                version = ((NdefStreamService)service).getVersion();
+            } else if(service instanceof NdefService) {
+                byte[] data = ((NdefService)service).getData();
+                serviceData[index] = data;
+                if(data != null) {
+                    version = (short)data.length;
+                }
+            }
+        } catch (SecurityException e) {
+            // service is no longer accessible
         }
-        // remember both references
-        refs[REF_SERVICE] = service;
-        refs[REF_DATA] = data;
+        return version;
+    }
+
+    /**
+     * @param service to check, may be null
+     * @return true if the service accepts writes
+     */
+    private boolean isWritable(Object service) {
+        return NDEF_WRITE_ACCESS != FILE_ACCESS_NONE
+                && service instanceof NdefStreamService;
     }
 
     /**
@@ -277,15 +636,10 @@ public final class NdefApplet extends Applet {
         // handle selection of the applet
         if(selectingApplet()) {
             vars[VAR_SELECTED_FILE] = FILEID_NONE;
-            connectService();
+            vars[VAR_SELECTED_SERVICE] = SERVICE_NONE;
             return;
         }
 
-        // if we are not connected then fail
-        if(!isConnected()) {
-            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
-        }
-
         // secure messaging is not supported
         if(apdu.isSecureMessagingCLA()) {
             ISOException.throwIt(ISO7816.SW_SECURE_MESSAGING_NOT_SUPPORTED);
@@ -298,7 +652,7 @@ public final class NdefApplet extends Applet {
             } else if (ins == INS_READ_BINARY) {
                 processReadBinary(apdu);
             } else if (ins == INS_UPDATE_BINARY) {
-                ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
+                processUpdateBinary(apdu);
             } else {
                 ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
             }
@@ -340,14 +694,74 @@ public final class NdefApplet extends Applet {
         // retrieve the file ID
         short fileId = Util.getShort(buffer, ISO7816.OFFSET_CDATA);
 
-        // perform selection if the ID is valid
-        if(fileId == FILEID_NDEF_CAPABILITIES || fileId == FILEID_NDEF_DATA) {
-            vars[VAR_SELECTED_FILE] = fileId;
+        // find the service for the file
+        byte index = SERVICE_NONE;
+        if(fileId == FILEID_NDEF_CAPABILITIES) {
+            // readers plan their reads from the CC
+            connectServices();
         } else {
-            ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+            index = findService(fileId);
+            if(index == SERVICE_NONE) {
+                ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+            }
+            // connect to the service on first use
+            connectService(index);
+            // discard data written to another file
+            if(dataBuffer != null && index != vars[VAR_SELECTED_SERVICE]) {
+                Util.arrayFillNonAtomic(dataBuffer, (short)0, NDEF_BUFFER_SIZE, (byte)0);
+                vars[VAR_WRITE_PENDING] = 0;
+            }
+        }
+
+        // perform selection
+        vars[VAR_SELECTED_FILE] = fileId;
+        vars[VAR_SELECTED_SERVICE] = index;
+        vars[VAR_RENDERED_LENGTH] = -1;
+
+        // let the service render the file, unless that would overwrite a write
+        if(FEATURE_RENDERING && index != SERVICE_NONE && vars[VAR_WRITE_PENDING] == 0) {
+            renderService(index, buffer);
         }
     }
 
+    /**
+     * Let a service render its file
+     *
+     * The service renders into the APDU buffer, which is
+     * accessible across the firewall, and the result is
+     * kept in the transient data buffer for this session.
+     * Only streaming services can render.
+     *
+     * @param index of the service
+     * @param buffer to render into (APDU buffer)
+     * @throws ISOException on error
+     */
+    private void renderService(byte index, byte[] buffer) throws ISOException {
+        Object object = serviceObjects[index];
+        if(!(object instanceof NdefStreamService)) {
+            return;
+        }
+        NdefStreamService service = (NdefStreamService)object;
+        // determine the maximum length
+        short max = NDEF_BUFFER_SIZE;
+        if(max > buffer.length) {
+            max = (short)buffer.length;
+        }
+        // render into the APDU buffer
+        short len = service.render(buffer, (short)0, max);
+        // service does not render
+        if(len < 0) {
+            return;
+        }
+        // check the rendered length
+        if(len > max || len > serviceLengths[index]) {
+            ISOException.throwIt(ISO7816.SW_UNKNOWN);
+        }
+        // keep the rendered file
+        Util.arrayCopyNonAtomic(buffer, (short)0, dataBuffer, (short)0, len);
+        vars[VAR_RENDERED_LENGTH] = len;
+    }
+
     /**
      * Process a READ BINARY command
      *
@@ -357,18 +771,25 @@ public final class NdefApplet extends Applet {
      * by the maximum R-APDU length as well as by
      * the maximum read size NDEF_MAX_READ.
      *
+     * Data file contents are served from the data
+     * buffer if rendered, or else read from the
+     * service directly into the APDU buffer. Data
+     * of services without streaming is sent from
+     * their data array.
+     *
      * @param apdu to process
      * @throws ISOException on error
      */
     private void processReadBinary(APDU apdu) throws ISOException {
         byte[] buffer = apdu.getBuffer();
+        short fileId = vars[VAR_SELECTED_FILE];
 
         // access the file
-        byte[] file = accessFileForRead(vars[VAR_SELECTED_FILE]);
+        short fileLen = accessFileForRead(fileId);
 
         // get and check the read offset
         short offset = Util.getShort(buffer, ISO7816.OFFSET_P1);
-        if(offset < 0 || offset >= file.length) {
+        if(offset < 0 || offset >= fileLen) {
             ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
         }
 
@@ -383,13 +804,120 @@ public final class NdefApplet extends Applet {
         if(limit < 0) {
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
-        if(limit >= file.length) {
-            le = (short)(file.length - offset);
+        if(limit >= fileLen) {
+            le = (short)(fileLen - offset);
         }
 
         // send the requested data
-        apdu.setOutgoingLength(le);
-        apdu.sendBytesLong(file, offset, le);
+        if(fileId == FILEID_NDEF_CAPABILITIES) {
+            apdu.setOutgoingLength(le);
+            apdu.sendBytesLong(capsFile, offset, le);
+        } else if(vars[VAR_RENDERED_LENGTH] >= 0) {
+            apdu.setOutgoingLength(le);
+            apdu.sendBytesLong(dataBuffer, offset, le);
+        } else {
+            byte index = (byte)vars[VAR_SELECTED_SERVICE];
+            Object object = serviceObjects[index];
+            if(!(object instanceof NdefStreamService)) {
+                apdu.setOutgoingLength(le);
+                apdu.sendBytesLong((byte[])serviceData[index], offset, le);
+                return;
+            }
+            NdefStreamService service = (NdefStreamService)object;
+            short got = service.read(offset, buffer, (short)0, le);
+            // the service must not exceed the window
+            if(got < 0 || got > le) {
+                ISOException.throwIt(ISO7816.SW_UNKNOWN);
+            }
+            apdu.setOutgoingLength(got);
+            apdu.sendBytes((short)0, got);
+        }
+    }
+
+    /**
+     * Process an UPDATE BINARY command
+     *
+     * Data is collected in the data buffer. Once a
+     * non-zero NLEN has been written the message is
+     * passed to the service in a single call.
+     *
+     * Rendered data is discarded by the first write,
+     * reads are served by the service from then on.
+     *
+     * @param apdu to process
+     * @throws ISOException on error
+     */
+    private void processUpdateBinary(APDU apdu) throws ISOException {
+        byte[] buffer = apdu.getBuffer();
+
+        // access the file
+        accessFileForWrite(vars[VAR_SELECTED_FILE]);
+
+        // get and check the write offset
+        short offset = Util.getShort(buffer, ISO7816.OFFSET_P1);
+        if(offset < 0 || offset >= NDEF_BUFFER_SIZE) {
+            ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+        }
+
+        // receive data
+        short lc = apdu.setIncomingAndReceive();
+
+        // check the input size
+        if(lc > NDEF_MAX_WRITE) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        // file limit checks
+        short limit = (short)(offset + lc);
+        if(limit < 0 || limit > NDEF_BUFFER_SIZE) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        // rendered data is replaced by the write
+        vars[VAR_RENDERED_LENGTH] = -1;
+        vars[VAR_WRITE_PENDING] = 1;
+
+        // buffer the data
+        Util.arrayCopyNonAtomic(buffer, ISO7816.OFFSET_CDATA, dataBuffer, offset, lc);
+
+        // commit if NLEN has been completed
+        if(offset < NDEF_OFF_DATA && limit >= NDEF_OFF_DATA) {
+            commitWrite(buffer);
+        }
+    }
+
+    /**
+     * Commit buffered data to the service
+     *
+     * Does nothing if NLEN is zero, which is how
+     * writers start updating the file.
+     *
+     * @param buffer to pass the message in (APDU buffer)
+     * @throws ISOException on error
+     */
+    private void commitWrite(byte[] buffer) throws ISOException {
+        short len = Util.getShort(dataBuffer, NDEF_OFF_NLEN);
+        // zero NLEN starts an update
+        if(len == 0) {
+            return;
+        }
+        // check the message length
+        if(len < 0 || len > (short)(NDEF_BUFFER_SIZE - NDEF_OFF_DATA)
+                || len > buffer.length) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        // pass the message through the global APDU buffer
+        Util.arrayCopyNonAtomic(dataBuffer, NDEF_OFF_DATA, buffer, (short)0, len);
+        byte index = (byte)vars[VAR_SELECTED_SERVICE];
+        NdefStreamService service = (NdefStreamService)serviceObjects[index];
+        service.write(buffer, (short)0, len);
+        // further reads are served by the service
+        vars[VAR_WRITE_PENDING] = 0;
+        // pick up the new data length
+        short version = getServiceVersion(index, service);
+        if(version >= 0 && version != serviceVersions[index]) {
+            refreshCaps(index, service, version);
+        }
     }
 
     /**
@@ -403,23 +931,57 @@ public final class NdefApplet extends Applet {
      * of data for this file is possible.
      *
      * @param fileId of the file to be read
-     * @return data array of the file
+     * @return length of the file
      * @throws ISOException on error
      */
-    private byte[] accessFileForRead(short fileId) throws ISOException {
-        byte[] file = null;
-        // select relevant data
+    private short accessFileForRead(short fileId) throws ISOException {
+        short length = -1;
+        // determine file length
         if(fileId == FILEID_NDEF_CAPABILITIES) {
-            file = capsFile;
+            length = (short)capsFile.length;
         }
-        if(fileId == FILEID_NDEF_DATA) {
-            file = (byte[])refs[REF_DATA];
+        byte index = (byte)vars[VAR_SELECTED_SERVICE];
+        if(index != SERVICE_NONE) {
+            length = vars[VAR_RENDERED_LENGTH];
+            if(length < 0) {
+                length = serviceLengths[index];
+            }
         }
         // check that we got anything
-        if(file == null) {
+        if(length < 0) {
             ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
         }
-        return file;
+        return length;
+    }
+
+    /**
+     * Access a file for writing
+     *
+     * This function serves to perform precondition checks
+     * before actually operating on a file in a write operation.
+     *
+     * If this function succeeds then the given fileId was
+     * valid, security access has been granted and writing
+     * of data for this file is possible.
+     *
+     * @param fileId of the file to be written
+     * @throws ISOException on error
+     */
+    private void accessFileForWrite(short fileId) throws ISOException {
+        // CC can not be written
+        if(fileId == FILEID_NDEF_CAPABILITIES) {
+            ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+        }
+        // check that we got anything
+        byte index = (byte)vars[VAR_SELECTED_SERVICE];
+        if(index == SERVICE_NONE) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        // perform access checks
+        if(NDEF_WRITE_ACCESS != FILE_ACCESS_OPEN
+                || !isWritable(serviceObjects[index])) {
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
     }
 
 }
@@ -0,0 +1,109 @@
+/*
+ * openjavacard-ndef: JavaCard applet implementing an NDEF tag
+ * Copyright (C) 2015-2018 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package org.openjavacard.ndef.stub;
+
+import javacard.framework.Shareable;
+
+/**
+ * \brief Streaming service interface for backends of the STUB variant
+ *
+ * Backends serve the contents of the NDEF data file on demand,
+ * so they do not need to keep the file materialized in memory.
+ * They may also render the file per session and accept writes.
+ *
+ * The stub uses this interface instead of getData() when the
+ * shareable object implements it, so getData() may return null.
+ *
+ * Buffers passed to the service are global arrays such as the
+ * APDU buffer, so they can be accessed across the firewall.
+ */
+public interface NdefStreamService extends NdefService, Shareable {
+
+    /**
+     * Get the version of the NDEF data file
+     *
+     * This is called once per session when the stub is selected.
+     *
+     * The service must change the version whenever the length
+     * of the file changes, allowing the stub to cache it.
+     *
+     * @return version of the file, or negative if unavailable
+     */
+    short getVersion();
+
+    /**
+     * Get the length of the NDEF data file
+     *
+     * This is called when the version of the file has changed.
+     *
+     * @return length of the file including NLEN, or negative if unavailable
+     */
+    short getLength();
+
+    /**
+     * Read from the NDEF data file
+     *
+     * The service must place at most len bytes starting
+     * at the given file offset into buf at off.
+     *
+     * @param offset in the file to read from
+     * @param buf to read into
+     * @param off offset in buf
+     * @param len maximum number of bytes to read
+     * @return number of bytes read
+     */
+    short read(short offset, byte[] buf, short off, short len);
+
+    /**
+     * Render the NDEF data file
+     *
+     * This is called on every SELECT of the data file,
+     * allowing the service to produce per-session content
+     * without writing to persistent memory. The stub keeps
+     * the result in transient memory and serves reads from it.
+     *
+     * The rendered file must not be larger than the length
+     * reported by getLength(), as that is what the capability
+     * container advertises.
+     *
+     * @param buf to render into
+     * @param off offset in buf
+     * @param len maximum length of the file
+     * @return length of the file including NLEN, or negative to use read()
+     */
+    short render(byte[] buf, short off, short len);
+
+    /**
+     * Write a complete NDEF message
+     *
+     * This is called once when a writer commits a
+     * new message by writing a non-zero NLEN.
+     *
+     * The service may throw an ISOException to reject
+     * the message. It should change its version when
+     * the message has been accepted.
+     *
+     * @param buf containing the message
+     * @param off offset of the message in buf
+     * @param len length of the message, excluding NLEN
+     */
+    void write(byte[] buf, short off, short len);
+
+}
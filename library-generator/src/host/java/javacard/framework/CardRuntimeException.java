@@ -0,0 +1,43 @@
+/*
+ * openjavacard-ndef: JavaCard applet implementing an NDEF tag
+ * Copyright (C) 2015-2018 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package javacard.framework;
+
+/**
+ * \brief Host shim of the JavaCard CardRuntimeException
+ */
+public class CardRuntimeException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private short reason;
+
+    public CardRuntimeException(short reason) {
+        this.reason = reason;
+    }
+
+    public short getReason() {
+        return reason;
+    }
+
+    public void setReason(short reason) {
+        this.reason = reason;
+    }
+
+}
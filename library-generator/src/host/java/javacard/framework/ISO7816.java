@@ -0,0 +1,33 @@
+/*
+ * openjavacard-ndef: JavaCard applet implementing an NDEF tag
+ * Copyright (C) 2015-2018 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package javacard.framework;
+
+/**
+ * \brief Host shim of the JavaCard ISO7816 interface
+ *
+ * Only the status words used by the generator library are provided.
+ */
+public interface ISO7816 {
+
+    short SW_NO_ERROR  = (short)0x9000;
+    short SW_FILE_FULL = (short)0x6A84;
+    short SW_UNKNOWN   = (short)0x6F00;
+
+}
@@ -0,0 +1,46 @@
+/*
+ * openjavacard-ndef: JavaCard applet implementing an NDEF tag
+ * Copyright (C) 2015-2018 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package javacard.framework;
+
+/**
+ * \brief Host shim of the JavaCard ISOException
+ *
+ * Unlike on a card, a new instance is thrown every time.
+ * This only matters for error paths, which are not expected
+ * to be free of allocation on the host.
+ */
+public class ISOException extends CardRuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ISOException(short sw) {
+        super(sw);
+    }
+
+    public static void throwIt(short sw) throws ISOException {
+        throw new ISOException(sw);
+    }
+
+    @Override
+    public String getMessage() {
+        return String.format("SW %04X", getReason() & 0xFFFF);
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * openjavacard-ndef: JavaCard applet implementing an NDEF tag
+ * Copyright (C) 2015-2018 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package javacard.framework;
+
+/**
+ * \brief Host shim of the JavaCard Util class
+ *
+ * There are no transactions on the host, so atomic
+ * and non-atomic variants behave the same.
+ */
+public final class Util {
+
+    private Util() {
+    }
+
+    public static short arrayCopy(byte[] src, short srcOff, byte[] dest, short destOff, short length) {
+        System.arraycopy(src, srcOff, dest, destOff, length);
+        return (short)(destOff + length);
+    }
+
+    public static short arrayCopyNonAtomic(byte[] src, short srcOff, byte[] dest, short destOff, short length) {
+        System.arraycopy(src, srcOff, dest, destOff, length);
+        return (short)(destOff + length);
+    }
+
+    public static short arrayFillNonAtomic(byte[] bArray, short bOff, short bLen, byte bValue) {
+        java.util.Arrays.fill(bArray, bOff, bOff + bLen, bValue);
+        return (short)(bOff + bLen);
+    }
+
+    public static short getShort(byte[] bArray, short bOff) {
+        return (short)(((bArray[bOff] & 0xFF) << 8) | (bArray[bOff + 1] & 0xFF));
+    }
+
+    public static short setShort(byte[] bArray, short bOff, short sValue) {
+        bArray[bOff] = (byte)(sValue >> 8);
+        bArray[bOff + 1] = (byte)sValue;
+        return (short)(bOff + 2);
+    }
+
+}
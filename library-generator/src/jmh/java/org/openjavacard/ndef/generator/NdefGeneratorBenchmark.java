@@ -0,0 +1,90 @@
+/*
+ * openjavacard-ndef: JavaCard applet implementing an NDEF tag
+ * Copyright (C) 2015-2018 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package org.openjavacard.ndef.generator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * \brief Host benchmarks for NdefGenerator
+ *
+ * Measures messages generated per second for typical
+ * workloads. Run with the gc profiler (as done by the
+ * bench-generator target) to get the allocation per
+ * message, which is expected to be zero.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NdefGeneratorBenchmark implements NdefConstants {
+
+    private static final byte[] TEXT =
+            "Hello from openjavacard-ndef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] URL =
+            "example.com/tag?id=0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private NdefGenerator gen;
+    private byte[] buf;
+
+    @Setup
+    public void setup() {
+        gen = new NdefGenerator();
+        buf = new byte[256];
+    }
+
+    @Benchmark
+    public short text() {
+        gen.begin(buf, (short)0, (short)buf.length);
+        gen.buildText(buf, TEXT, (short)0, (short)TEXT.length);
+        return gen.finish(buf);
+    }
+
+    @Benchmark
+    public short uri() {
+        gen.begin(buf, (short)0, (short)buf.length);
+        gen.buildURL(buf, ABBR_HTTPS, URL, (short)0, (short)URL.length);
+        return gen.finish(buf);
+    }
+
+    @Benchmark
+    public short smartPoster() {
+        gen.begin(buf, (short)0, (short)buf.length);
+        gen.beginSmartPoster(buf);
+        gen.buildURL(buf, ABBR_HTTPS, URL, (short)0, (short)URL.length);
+        gen.buildText(buf, TEXT, (short)0, (short)TEXT.length);
+        gen.endSmartPoster(buf);
+        return gen.finish(buf);
+    }
+
+}
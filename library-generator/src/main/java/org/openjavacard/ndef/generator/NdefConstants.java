@@ -30,7 +30,7 @@ public interface NdefConstants {
     // Flag indicating that the record is in short format
     byte FLAG_SHORT = (byte)0x10;
     // Flag indicating presence of an ID length field
-    byte FLAG_IL    = (byte)0x80;
+    byte FLAG_IL    = (byte)0x08;
 
     // Mask for TNF in the flag field
     byte TNF_MASK = (byte)0x07;
@@ -21,36 +21,719 @@ package org.openjavacard.ndef.generator;
 
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
 
-public class NdefGenerator {
+/**
+ * \brief Generator for NDEF messages
+ *
+ * Writes an NDEF message in a single pass into a caller-provided
+ * buffer. All state is kept in transient arrays that are allocated
+ * by the constructor, so generating does not allocate or write to
+ * persistent memory.
+ *
+ * The output buffer has to be passed to every call because it may
+ * be a global array such as the APDU buffer, which can not be stored.
+ * Input data must not overlap the part of the buffer being written.
+ *
+ * Records get the short format when their payload fits. Smart Poster
+ * records are written in long format and compacted when they end.
+ *
+ * Usage:
+ *   begin(buf, off, len);
+ *   beginSmartPoster(buf);
+ *   buildURL(buf, ABBR_HTTPS, url, urlOff, urlLen);
+ *   buildText(buf, text, textOff, textLen);
+ *   endSmartPoster(buf);
+ *   len = finish(buf);
+ *
+ * Payloads of unknown length can be written as chunked records
+ * using beginChunked(), buildChunk() and endChunked(). Chunks must
+ * not be interleaved with other records.
+ *
+ * Messages can also be served without materializing them. After
+ * a layout pass started with beginMeasure(), every pass started
+ * with beginWindow() renders only the requested window of the NDEF
+ * file, including NLEN. Each pass must build the same records with
+ * the same lengths, only the content of the records may change.
+ */
+public class NdefGenerator implements NdefConstants {
 
-    private short mLength;
-    private short mDepth;
+    /** Default maximum nesting depth */
+    private static final byte DEFAULT_DEPTH = 2;
+    /** Default maximum number of Smart Posters in layout */
+    private static final byte DEFAULT_POSTERS = 4;
 
-    private byte[]  mFlagStk;
-    private short[] mLenStk;
+    /** Length of the long record header without type */
+    private static final byte HEADER_LONG = 6;
+    /** Length of the short record header without type */
+    private static final byte HEADER_SHORT = 3;
+    /** Offset of the payload length in a record */
+    private static final byte HEADER_OFF_LENGTH = 2;
 
+    /** Length of the NLEN field of NDEF files */
+    private static final byte NLEN_SIZE = 2;
+
+    /** Length of the default language code */
+    private static final byte LANG_DEFAULT_LEN = 2;
+    /** Default language code "en" */
+    private static final byte LANG_DEFAULT_0 = 0x65; // 'e'
+    private static final byte LANG_DEFAULT_1 = 0x6E; // 'n'
+
+    /** Mode: writing to a buffer */
+    private static final byte MODE_BUFFER = 0;
+    /** Mode: layout pass without output */
+    private static final byte MODE_MEASURE = 1;
+    /** Mode: writing a window of the NDEF file */
+    private static final byte MODE_WINDOW = 2;
+
+    /** Index for start of the message */
+    private static final byte VAR_START = 0;
+    /** Index for current output position */
+    private static final byte VAR_POS = 1;
+    /** Index for end of the output buffer */
+    private static final byte VAR_END = 2;
+    /** Index for current nesting depth */
+    private static final byte VAR_DEPTH = 3;
+    /** Index for generator mode */
+    private static final byte VAR_MODE = 4;
+    /** Index for number of Smart Posters begun */
+    private static final byte VAR_POSTERS = 5;
+    /** Index for message length from the layout pass */
+    private static final byte VAR_LENGTH = 6;
+    /** Index for file position of the window */
+    private static final byte VAR_WIN_START = 7;
+    /** Index for file position of the window end */
+    private static final byte VAR_WIN_END = 8;
+    /** Index for buffer offset of the window */
+    private static final byte VAR_WIN_OFF = 9;
+    /** Index for flag indicating an open chunked record */
+    private static final byte VAR_CHUNKED = 10;
+    /** Number of variables */
+    private static final byte NUM_VARS = 11;
+
+    /** Maximum nesting depth */
+    private final byte mMaxDepth;
+
+    /** Transient variables */
+    private final short[] mVars;
+    /** Offset of the last record on each level, -1 if none */
+    private final short[] mLastStk;
+    /** Offset of the open Smart Poster record on each level */
+    private final short[] mPosterStk;
+    /** Index of the open Smart Poster record on each level */
+    private final short[] mIndexStk;
+    /** Payload lengths of Smart Posters from the layout pass */
+    private final short[] mPosterLen;
+
+    /**
+     * Construct a generator with the default limits
+     */
     public NdefGenerator() {
+        this(DEFAULT_DEPTH, DEFAULT_POSTERS);
+    }
+
+    /**
+     * Construct a generator
+     *
+     * State is kept in CLEAR_ON_RESET memory so that the
+     * generator can also be used when its owner is called
+     * through a shareable interface.
+     *
+     * @param maxDepth for nesting of Smart Posters
+     * @param maxPosters in messages generated in windows
+     */
+    public NdefGenerator(byte maxDepth, byte maxPosters) {
+        mMaxDepth = maxDepth;
+        mVars = JCSystem.makeTransientShortArray(NUM_VARS, JCSystem.CLEAR_ON_RESET);
+        mLastStk = JCSystem.makeTransientShortArray((short)(maxDepth + 1), JCSystem.CLEAR_ON_RESET);
+        mPosterStk = JCSystem.makeTransientShortArray(maxDepth, JCSystem.CLEAR_ON_RESET);
+        mIndexStk = JCSystem.makeTransientShortArray(maxDepth, JCSystem.CLEAR_ON_RESET);
+        mPosterLen = JCSystem.makeTransientShortArray(maxPosters, JCSystem.CLEAR_ON_RESET);
+    }
+
+    /**
+     * Begin generating a message
+     *
+     * @param buf to write the message to
+     * @param off offset of the message in buf
+     * @param len space available in buf
+     */
+    public void begin(byte[] buf, short off, short len) {
+        short end = (short)(off + len);
+        if(off < 0 || len < 0 || end < 0 || end > buf.length) {
+            error();
+        }
+        beginPass(MODE_BUFFER, off, end);
+    }
+
+    /**
+     * Begin the layout pass for windowed generation
+     *
+     * Nothing is written in this pass, so the buffer
+     * arguments of the build methods may be null.
+     * The pass determines the lengths of Smart Posters
+     * and of the message, returned by finish().
+     */
+    public void beginMeasure() {
+        beginPass(MODE_MEASURE, (short)0, (short)0x7FFF);
+    }
+
+    /**
+     * Begin rendering a window of the NDEF file
+     *
+     * Requires a preceding layout pass. The window is
+     * a range of the NDEF file, so position 0 is the
+     * start of NLEN, and finish() will return the
+     * number of bytes written to the window.
+     *
+     * @param buf to write the window to
+     * @param off offset of the window in buf
+     * @param fileOff position of the window in the file
+     * @param len length of the window
+     */
+    public void beginWindow(byte[] buf, short off, short fileOff, short len) {
+        short end = (short)(off + len);
+        short fileEnd = (short)(fileOff + len);
+        if(off < 0 || len < 0 || end < 0 || end > buf.length
+                || fileOff < 0 || fileEnd < 0) {
+            error();
+        }
+        mVars[VAR_WIN_START] = fileOff;
+        mVars[VAR_WIN_END] = fileEnd;
+        mVars[VAR_WIN_OFF] = off;
+        beginPass(MODE_WINDOW, NLEN_SIZE, (short)0x7FFF);
+        // write NLEN
+        short length = mVars[VAR_LENGTH];
+        put(buf, (short)0, (byte)(length >> 8));
+        put(buf, (short)1, (byte)length);
+    }
+
+    /**
+     * Begin a Smart Poster record
+     *
+     * Records built until the matching endSmartPoster()
+     * will be nested inside the Smart Poster.
+     *
+     * @param buf being written to
+     */
+    public void beginSmartPoster(byte[] buf) {
+        checkNotChunked();
+        short depth = mVars[VAR_DEPTH];
+        if(depth >= mMaxDepth) {
+            error();
+        }
+        short index = mVars[VAR_POSTERS];
+        if(mVars[VAR_MODE] != MODE_BUFFER && index >= mPosterLen.length) {
+            error();
+        }
+        // long format until we know the length
+        short len = -1;
+        if(mVars[VAR_MODE] == MODE_WINDOW) {
+            len = mPosterLen[index];
+        }
+        // write header and type
+        short rec = mVars[VAR_POS];
+        short pos = writeHeader(buf, TNF_WELL_KNOWN, (byte)2, len);
+        put(buf, pos++, RTD_SMARTPOSTER_0);
+        put(buf, pos++, RTD_SMARTPOSTER_1);
+        mVars[VAR_POS] = pos;
+        // open a new level
+        mPosterStk[depth] = rec;
+        mIndexStk[depth] = index;
+        mVars[VAR_POSTERS] = (short)(index + 1);
+        depth++;
+        mLastStk[depth] = -1;
+        mVars[VAR_DEPTH] = depth;
+    }
+
+    /**
+     * End a Smart Poster record
+     *
+     * @param buf being written to
+     */
+    public void endSmartPoster(byte[] buf) {
+        checkNotChunked();
+        short depth = mVars[VAR_DEPTH];
+        if(depth == 0) {
+            error();
+        }
+        // terminate the nested message
+        endMessage(buf, depth);
+        depth--;
+        mVars[VAR_DEPTH] = depth;
+        // header is final in window mode
+        byte mode = (byte)mVars[VAR_MODE];
+        if(mode == MODE_WINDOW) {
+            return;
+        }
+        // determine the payload
+        short rec = mPosterStk[depth];
+        short payload = (short)(rec + HEADER_LONG + 2);
+        short pos = mVars[VAR_POS];
+        short len = (short)(pos - payload);
+        if(mode == MODE_MEASURE) {
+            mPosterLen[mIndexStk[depth]] = len;
+        }
+        if(len <= 0xFF) {
+            // compact into short format
+            short shift = (short)(HEADER_LONG - HEADER_SHORT);
+            if(mode == MODE_BUFFER) {
+                Util.arrayCopyNonAtomic(buf, payload, buf, (short)(payload - shift), len);
+                buf[rec] |= FLAG_SHORT;
+                buf[(short)(rec + HEADER_OFF_LENGTH)] = (byte)len;
+                buf[(short)(rec + HEADER_SHORT)] = RTD_SMARTPOSTER_0;
+                buf[(short)(rec + HEADER_SHORT + 1)] = RTD_SMARTPOSTER_1;
+            }
+            pos -= shift;
+        } else if(mode == MODE_BUFFER) {
+            // patch the long length
+            Util.setShort(buf, (short)(rec + HEADER_OFF_LENGTH + 2), len);
+        }
+        mVars[VAR_POS] = pos;
+    }
+
+    /**
+     * Build a text record in the default language
+     *
+     * @param buf being written to
+     * @param text array containing UTF-8 text
+     * @param textOff offset of text
+     * @param textLen length of text
+     */
+    public void buildText(byte[] buf, byte[] text, short textOff, short textLen) {
+        checkNotChunked();
+        checkLength(textLen);
+        short pos = beginText(buf, LANG_DEFAULT_LEN, textLen);
+        put(buf, pos++, LANG_DEFAULT_0);
+        put(buf, pos++, LANG_DEFAULT_1);
+        mVars[VAR_POS] = putBytes(buf, pos, text, textOff, textLen);
+    }
+
+    /**
+     * Build a text record
+     *
+     * @param buf being written to
+     * @param lang array containing language code
+     * @param langOff offset of language code
+     * @param langLen length of language code
+     * @param text array containing UTF-8 text
+     * @param textOff offset of text
+     * @param textLen length of text
+     */
+    public void buildText(byte[] buf, byte[] lang, short langOff, byte langLen,
+                          byte[] text, short textOff, short textLen) {
+        checkNotChunked();
+        checkLength(textLen);
+        short pos = beginText(buf, langLen, textLen);
+        pos = putBytes(buf, pos, lang, langOff, langLen);
+        mVars[VAR_POS] = putBytes(buf, pos, text, textOff, textLen);
+    }
+
+    /**
+     * Build a URI record
+     *
+     * @param buf being written to
+     * @param abbr for the URI prefix (ABBR_*)
+     * @param url array containing the rest of the URI
+     * @param urlOff offset of the URI
+     * @param urlLen length of the URI
+     */
+    public void buildURL(byte[] buf, byte abbr, byte[] url, short urlOff, short urlLen) {
+        checkNotChunked();
+        checkLength(urlLen);
+        short pos = writeHeader(buf, TNF_WELL_KNOWN, (byte)1, checkLength((short)(urlLen + 1)));
+        put(buf, pos++, RTD_URI_0);
+        put(buf, pos++, abbr);
+        mVars[VAR_POS] = putBytes(buf, pos, url, urlOff, urlLen);
+    }
+
+    /**
+     * Build a MIME media record
+     *
+     * @param buf being written to
+     * @param type array containing the media type
+     * @param typeOff offset of the media type
+     * @param typeLen length of the media type
+     * @param data array containing the payload
+     * @param dataOff offset of the payload
+     * @param dataLen length of the payload
+     */
+    public void buildMedia(byte[] buf, byte[] type, short typeOff, byte typeLen,
+                           byte[] data, short dataOff, short dataLen) {
+        buildRecord(buf, TNF_MEDIA, type, typeOff, typeLen, data, dataOff, dataLen);
+    }
+
+    /**
+     * Build an external type record
+     *
+     * @param buf being written to
+     * @param type array containing the external type ("domain:type")
+     * @param typeOff offset of the type
+     * @param typeLen length of the type
+     * @param data array containing the payload
+     * @param dataOff offset of the payload
+     * @param dataLen length of the payload
+     */
+    public void buildExternal(byte[] buf, byte[] type, short typeOff, byte typeLen,
+                              byte[] data, short dataOff, short dataLen) {
+        buildRecord(buf, TNF_EXTERNAL, type, typeOff, typeLen, data, dataOff, dataLen);
+    }
+
+    /**
+     * Build a record of arbitrary type
+     *
+     * @param buf being written to
+     * @param tnf of the record (TNF_*)
+     * @param type array containing the type
+     * @param typeOff offset of the type
+     * @param typeLen length of the type
+     * @param data array containing the payload
+     * @param dataOff offset of the payload
+     * @param dataLen length of the payload
+     */
+    public void buildRecord(byte[] buf, byte tnf, byte[] type, short typeOff, byte typeLen,
+                            byte[] data, short dataOff, short dataLen) {
+        checkNotChunked();
+        checkType(tnf, typeLen);
+        checkLength(dataLen);
+        short pos = writeHeader(buf, tnf, typeLen, dataLen);
+        pos = putBytes(buf, pos, type, typeOff, typeLen);
+        mVars[VAR_POS] = putBytes(buf, pos, data, dataOff, dataLen);
+    }
+
+    /**
+     * Begin a chunked record
+     *
+     * Writes the initial chunk, carrying the type and
+     * the first part of the payload. The payload can be
+     * continued with buildChunk() and must be terminated
+     * with endChunked().
+     *
+     * @param buf being written to
+     * @param tnf of the record (TNF_*)
+     * @param type array containing the type
+     * @param typeOff offset of the type
+     * @param typeLen length of the type
+     * @param data array containing the payload chunk
+     * @param dataOff offset of the payload chunk
+     * @param dataLen length of the payload chunk
+     */
+    public void beginChunked(byte[] buf, byte tnf, byte[] type, short typeOff, byte typeLen,
+                             byte[] data, short dataOff, short dataLen) {
+        checkNotChunked();
+        checkType(tnf, typeLen);
+        checkLength(dataLen);
+        short pos = writeHeader(buf, (byte)(tnf | FLAG_CHUNKED), typeLen, dataLen);
+        pos = putBytes(buf, pos, type, typeOff, typeLen);
+        mVars[VAR_POS] = putBytes(buf, pos, data, dataOff, dataLen);
+        mVars[VAR_CHUNKED] = 1;
+    }
+
+    /**
+     * Build a middle chunk of a chunked record
+     *
+     * @param buf being written to
+     * @param data array containing the payload chunk
+     * @param dataOff offset of the payload chunk
+     * @param dataLen length of the payload chunk
+     */
+    public void buildChunk(byte[] buf, byte[] data, short dataOff, short dataLen) {
+        buildChunk(buf, FLAG_CHUNKED, data, dataOff, dataLen);
+    }
+
+    /**
+     * End a chunked record
+     *
+     * Writes the terminating chunk, which may be empty.
+     *
+     * @param buf being written to
+     * @param data array containing the payload chunk
+     * @param dataOff offset of the payload chunk
+     * @param dataLen length of the payload chunk
+     */
+    public void endChunked(byte[] buf, byte[] data, short dataOff, short dataLen) {
+        buildChunk(buf, (byte)0, data, dataOff, dataLen);
+        mVars[VAR_CHUNKED] = 0;
+    }
+
+    /**
+     * Finish generating the message
+     *
+     * An empty record is written if the message is empty.
+     *
+     * @param buf being written to
+     * @return length of the message, or of the window contents
+     */
+    public short finish(byte[] buf) {
+        checkNotChunked();
+        if(mVars[VAR_DEPTH] != 0) {
+            error();
+        }
+        // NDEF messages can not be empty
+        if(mLastStk[0] < 0) {
+            mVars[VAR_POS] = writeHeader(buf, TNF_EMPTY, (byte)0, (short)0);
+        }
+        endMessage(buf, (short)0);
+        short length = (short)(mVars[VAR_POS] - mVars[VAR_START]);
+        byte mode = (byte)mVars[VAR_MODE];
+        if(mode == MODE_MEASURE) {
+            mVars[VAR_LENGTH] = length;
+        }
+        if(mode == MODE_WINDOW) {
+            // layout must not have changed
+            if(length != mVars[VAR_LENGTH]) {
+                error();
+            }
+            // return the amount of data in the window
+            short end = mVars[VAR_POS];
+            if(end > mVars[VAR_WIN_END]) {
+                end = mVars[VAR_WIN_END];
+            }
+            length = (short)(end - mVars[VAR_WIN_START]);
+            if(length < 0) {
+                length = 0;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Reset state for a new pass
+     *
+     * @param mode of the pass
+     * @param start position of the message
+     * @param end limit of the output
+     */
+    private void beginPass(byte mode, short start, short end) {
+        mVars[VAR_MODE] = mode;
+        mVars[VAR_START] = start;
+        mVars[VAR_POS] = start;
+        mVars[VAR_END] = end;
+        mVars[VAR_DEPTH] = 0;
+        mVars[VAR_POSTERS] = 0;
+        mVars[VAR_CHUNKED] = 0;
+        mLastStk[0] = -1;
+    }
+
+    /**
+     * Write a subsequent chunk of a chunked record
+     *
+     * @param buf being written to
+     * @param flags for the chunk (FLAG_CHUNKED or 0)
+     * @param data array containing the payload chunk
+     * @param dataOff offset of the payload chunk
+     * @param dataLen length of the payload chunk
+     */
+    private void buildChunk(byte[] buf, byte flags, byte[] data, short dataOff, short dataLen) {
+        if(mVars[VAR_CHUNKED] == 0) {
+            error();
+        }
+        checkLength(dataLen);
+        short pos = writeHeader(buf, (byte)(TNF_UNCHANGED | flags), (byte)0, dataLen);
+        mVars[VAR_POS] = putBytes(buf, pos, data, dataOff, dataLen);
+    }
+
+    /**
+     * Check that no chunked record is open
+     */
+    private void checkNotChunked() {
+        if(mVars[VAR_CHUNKED] != 0) {
+            error();
+        }
+    }
+
+    /**
+     * Check a length given by the caller
+     *
+     * Negative lengths are reserved for internal use
+     * by writeHeader() and would corrupt the message.
+     *
+     * @param len to check
+     * @return the length
+     */
+    private short checkLength(short len) {
+        if(len < 0) {
+            error();
+        }
+        return len;
+    }
+
+    /**
+     * Check TNF and type length of a new record
+     *
+     * @param tnf of the record
+     * @param typeLen length of the type
+     */
+    private void checkType(byte tnf, byte typeLen) {
+        if(tnf == TNF_EMPTY || tnf == TNF_UNKNOWN) {
+            if(typeLen != 0) {
+                error();
+            }
+        } else if(tnf < TNF_EMPTY || tnf >= TNF_UNCHANGED || typeLen <= 0) {
+            error();
+        }
     }
 
-    public void begin() {
-        mLength = 0;
-        mDepth = 0;
+    /**
+     * Write header and status byte of a text record
+     *
+     * @return position of the language code
+     */
+    private short beginText(byte[] buf, byte langLen, short textLen) {
+        if(langLen < 0 || langLen > 0x3F) {
+            error();
+        }
+        short pos = writeHeader(buf, TNF_WELL_KNOWN, (byte)1,
+                checkLength((short)(1 + langLen + textLen)));
+        put(buf, pos++, RTD_TEXT_0);
+        // status byte for UTF-8
+        put(buf, pos++, langLen);
+        return pos;
     }
 
-    public void beginSmartPoster() {
+    /**
+     * Write a record header
+     *
+     * Checks that the complete record will fit, selects the
+     * record format and manages the MB flag. The caller must
+     * write the type and payload and update VAR_POS.
+     *
+     * A negative payload length selects the long format
+     * with a length to be patched by the caller.
+     *
+     * @param buf being written to
+     * @param tnf of the record
+     * @param typeLen length of the record type
+     * @param payloadLen length of the payload, or -1 if unknown
+     * @return position of the record type
+     */
+    private short writeHeader(byte[] buf, byte tnf, byte typeLen, short payloadLen) {
+        short depth = mVars[VAR_DEPTH];
+        short pos = mVars[VAR_POS];
+        boolean isShort = payloadLen >= 0 && payloadLen <= 0xFF;
+        // check that the record fits
+        short hdrLen = isShort ? HEADER_SHORT : HEADER_LONG;
+        short recLen = (short)(hdrLen + typeLen);
+        if(payloadLen > 0) {
+            recLen += payloadLen;
+        } else {
+            payloadLen = 0;
+        }
+        if(recLen < 0 || (short)(pos + recLen) < 0
+                || (short)(pos + recLen) > mVars[VAR_END]) {
+            ISOException.throwIt(ISO7816.SW_FILE_FULL);
+        }
+        // determine flags
+        byte flags = tnf;
+        if(isShort) {
+            flags |= FLAG_SHORT;
+        }
+        if(mLastStk[depth] < 0) {
+            flags |= FLAG_MB;
+        }
+        mLastStk[depth] = pos;
+        // write the header
+        put(buf, pos++, flags);
+        put(buf, pos++, typeLen);
+        if(isShort) {
+            put(buf, pos++, (byte)payloadLen);
+        } else {
+            put(buf, pos++, (byte)0);
+            put(buf, pos++, (byte)0);
+            put(buf, pos++, (byte)(payloadLen >> 8));
+            put(buf, pos++, (byte)payloadLen);
+        }
+        return pos;
     }
 
-    public void endSmartPoster() {
+    /**
+     * Terminate the message on the given level
+     *
+     * @param buf being written to
+     * @param depth of the message
+     */
+    private void endMessage(byte[] buf, short depth) {
+        short last = mLastStk[depth];
+        if(last < 0) {
+            error();
+        }
+        short off = map(last);
+        if(off >= 0) {
+            buf[off] |= FLAG_ME;
+        }
     }
 
-    public void buildText(byte[] buf, short off, short len) {
+    /**
+     * Map a position to an offset in the buffer
+     *
+     * @param pos to map
+     * @return offset in the buffer or -1 if not written
+     */
+    private short map(short pos) {
+        byte mode = (byte)mVars[VAR_MODE];
+        if(mode == MODE_BUFFER) {
+            return pos;
+        }
+        if(mode == MODE_WINDOW
+                && pos >= mVars[VAR_WIN_START] && pos < mVars[VAR_WIN_END]) {
+            return (short)(pos - mVars[VAR_WIN_START] + mVars[VAR_WIN_OFF]);
+        }
+        return -1;
     }
 
-    public void buildURL(byte abbr, byte[] buf, short Off, short Len) {
+    /**
+     * Write a byte at the given position
+     *
+     * @param buf being written to
+     * @param pos of the byte
+     * @param b value of the byte
+     */
+    private void put(byte[] buf, short pos, byte b) {
+        short off = map(pos);
+        if(off >= 0) {
+            buf[off] = b;
+        }
     }
 
-    public void finish(byte[] buf, short off, short len) {
+    /**
+     * Write bytes at the given position
+     *
+     * Only the part overlapping the window is copied.
+     *
+     * @param buf being written to
+     * @param pos of the first byte
+     * @param src array containing the bytes
+     * @param srcOff offset of the bytes in src
+     * @param len number of bytes
+     * @return position after the bytes
+     */
+    private short putBytes(byte[] buf, short pos, byte[] src, short srcOff, short len) {
+        short end = (short)(pos + len);
+        byte mode = (byte)mVars[VAR_MODE];
+        if(len <= 0) {
+            return end;
+        }
+        if(mode == MODE_BUFFER) {
+            Util.arrayCopyNonAtomic(src, srcOff, buf, pos, len);
+        } else if(mode == MODE_WINDOW) {
+            // clip to the window
+            short start = pos;
+            short winStart = mVars[VAR_WIN_START];
+            short winEnd = mVars[VAR_WIN_END];
+            if(start < winStart) {
+                start = winStart;
+            }
+            short stop = end;
+            if(stop > winEnd) {
+                stop = winEnd;
+            }
+            if(start < stop) {
+                Util.arrayCopyNonAtomic(src, (short)(srcOff + start - pos),
+                        buf, map(start), (short)(stop - start));
+            }
+        }
+        return end;
     }
 
     private void error() {
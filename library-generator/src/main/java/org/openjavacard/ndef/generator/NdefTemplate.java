@@ -0,0 +1,302 @@
+/*
+ * openjavacard-ndef: JavaCard applet implementing an NDEF tag
+ * Copyright (C) 2015-2018 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package org.openjavacard.ndef.generator;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.Util;
+
+/**
+ * \brief NDEF file with patchable slots
+ *
+ * A template is an NDEF file (NLEN followed by the message) that
+ * has been generated once, for example using NdefGenerator, with
+ * placeholder bytes in some record payloads. Slots of fixed width
+ * are then defined over these placeholders and can be patched in
+ * constant time without regenerating the message.
+ *
+ * Because slots never change in width, record headers and NLEN
+ * stay valid. Patches are atomic when the file is persistent.
+ *
+ * Slots are addressed by the index of their record in the message,
+ * counting records in order of appearance and including records
+ * nested in Smart Posters as well as the Smart Posters themselves.
+ *
+ * Usage:
+ *   gen.begin(file, 2, len - 2);
+ *   gen.beginSmartPoster(file);                    // record 0
+ *   gen.buildURL(file, ABBR_HTTPS, url, 0, urlLen); // record 1
+ *   gen.endSmartPoster(file);
+ *   Util.setShort(file, 0, gen.finish(file));
+ *   tpl = new NdefTemplate(file, 1);
+ *   tpl.defineSlot(0, 1, idOffset + 1, idLen);     // 1 for the URI prefix byte
+ *   tpl.patch(0, id, 0);
+ */
+public class NdefTemplate implements NdefConstants {
+
+    /** Offset of the message in the file */
+    private static final byte FILE_OFF_MESSAGE = 2;
+
+    /** NDEF file containing the message */
+    private final byte[] mFile;
+    /** File offsets of the slots, -1 if undefined */
+    private final short[] mSlotOff;
+    /** Widths of the slots */
+    private final short[] mSlotLen;
+
+    /**
+     * Construct a template for the given file
+     *
+     * @param file containing NLEN and message
+     * @param maxSlots number of slots
+     */
+    public NdefTemplate(byte[] file, byte maxSlots) {
+        mFile = file;
+        mSlotOff = new short[maxSlots];
+        mSlotLen = new short[maxSlots];
+        for(byte slot = 0; slot < maxSlots; slot++) {
+            mSlotOff[slot] = -1;
+        }
+    }
+
+    /**
+     * @return the NDEF file of this template
+     */
+    public byte[] getFile() {
+        return mFile;
+    }
+
+    /**
+     * Define a slot
+     *
+     * Locates the payload of the given record
+     * and records the file offset of the slot.
+     *
+     * @param slot to define
+     * @param record index of the record
+     * @param offset of the slot in the record payload
+     * @param width of the slot
+     */
+    public void defineSlot(byte slot, short record, short offset, short width) {
+        checkSlot(slot);
+        short pos = findRecord(record);
+        short payload = findPayloadAt(pos);
+        short payloadLen = getPayloadLengthAt(pos);
+        short end = (short)(offset + width);
+        if(offset < 0 || width <= 0 || end < 0 || end > payloadLen) {
+            error();
+        }
+        mSlotOff[slot] = (short)(payload + offset);
+        mSlotLen[slot] = width;
+    }
+
+    /**
+     * Get the file offset of a slot
+     *
+     * @param slot to query
+     * @return offset of the slot in the file
+     */
+    public short getSlotOffset(byte slot) {
+        checkSlot(slot);
+        short off = mSlotOff[slot];
+        if(off < 0) {
+            error();
+        }
+        return off;
+    }
+
+    /**
+     * Get the width of a slot
+     *
+     * @param slot to query
+     * @return width of the slot
+     */
+    public short getSlotWidth(byte slot) {
+        getSlotOffset(slot);
+        return mSlotLen[slot];
+    }
+
+    /**
+     * Patch a slot
+     *
+     * Copies exactly the width of the slot from src.
+     *
+     * @param slot to patch
+     * @param src array containing the new contents
+     * @param srcOff offset of the new contents
+     */
+    public void patch(byte slot, byte[] src, short srcOff) {
+        Util.arrayCopy(src, srcOff, mFile, getSlotOffset(slot), mSlotLen[slot]);
+    }
+
+    /**
+     * Get the payload length of the record at pos
+     *
+     * @param pos of the record header
+     * @return length of the payload
+     */
+    private short getPayloadLengthAt(short pos) {
+        byte flags = mFile[pos];
+        pos += 2;
+        if((flags & FLAG_SHORT) != 0) {
+            return (short)(mFile[pos] & 0xFF);
+        }
+        // lengths beyond a short can not be handled
+        if(Util.getShort(mFile, pos) != 0) {
+            error();
+        }
+        return Util.getShort(mFile, (short)(pos + 2));
+    }
+
+    /**
+     * Find a record in the message
+     *
+     * Walks the message in order of appearance,
+     * descending into Smart Poster payloads.
+     *
+     * @param record index of the record
+     * @return file offset of the record header
+     */
+    private short findRecord(short record) {
+        if(record < 0 || mFile.length < FILE_OFF_MESSAGE) {
+            error();
+        }
+        short pos = FILE_OFF_MESSAGE;
+        short end = (short)(FILE_OFF_MESSAGE + Util.getShort(mFile, (short)0));
+        if(end < pos || end > mFile.length) {
+            error();
+        }
+        short index = 0;
+        while(pos < end) {
+            checkRecordAt(pos, end);
+            if(index == record) {
+                return pos;
+            }
+            short payload = findPayloadAt(pos);
+            short payloadLen = getPayloadLengthAt(pos);
+            if(isSmartPoster(pos)) {
+                // continue with the nested message
+                pos = payload;
+            } else {
+                pos = (short)(payload + payloadLen);
+            }
+            index++;
+        }
+        error();
+        return -1;
+    }
+
+    /**
+     * Check that the record at pos lies within the message
+     *
+     * Must be called before any other access to the record.
+     *
+     * @param pos of the record header
+     * @param end of the message
+     */
+    private void checkRecordAt(short pos, short end) {
+        // flags, type length and the first length byte
+        if((short)(pos + 3) > end) {
+            error();
+        }
+        // rest of the header, including the ID length
+        short type = findTypeAt(pos);
+        if(type < pos || type > end) {
+            error();
+        }
+        // type, ID and payload
+        short payload = findPayloadAt(pos);
+        short payloadLen = getPayloadLengthAt(pos);
+        short payloadEnd = (short)(payload + payloadLen);
+        if(payload < type || payload > end
+                || payloadLen < 0 || payloadEnd < payload || payloadEnd > end) {
+            error();
+        }
+    }
+
+    /**
+     * Check that a slot index is valid
+     *
+     * @param slot to check
+     */
+    private void checkSlot(byte slot) {
+        if(slot < 0 || slot >= (short)mSlotOff.length) {
+            error();
+        }
+    }
+
+    /**
+     * Find the type of the record at pos
+     *
+     * @param pos of the record header
+     * @return file offset of the type
+     */
+    private short findTypeAt(short pos) {
+        byte flags = mFile[pos];
+        pos += 2;
+        // skip payload length
+        if((flags & FLAG_SHORT) != 0) {
+            pos += 1;
+        } else {
+            pos += 4;
+        }
+        // skip ID length
+        if((flags & FLAG_IL) != 0) {
+            pos += 1;
+        }
+        return pos;
+    }
+
+    /**
+     * Find the payload of the record at pos
+     *
+     * @param pos of the record header
+     * @return file offset of the payload
+     */
+    private short findPayloadAt(short pos) {
+        short type = findTypeAt(pos);
+        short typeLen = (short)(mFile[(short)(pos + 1)] & 0xFF);
+        short idLen = 0;
+        if((mFile[pos] & FLAG_IL) != 0) {
+            idLen = (short)(mFile[(short)(type - 1)] & 0xFF);
+        }
+        return (short)(type + typeLen + idLen);
+    }
+
+    /**
+     * Check if the record at pos is a Smart Poster
+     *
+     * @param pos of the record header
+     * @return true if the record is a Smart Poster
+     */
+    private boolean isSmartPoster(short pos) {
+        if((mFile[pos] & TNF_MASK) != TNF_WELL_KNOWN || mFile[(short)(pos + 1)] != 2) {
+            return false;
+        }
+        short type = findTypeAt(pos);
+        return mFile[type] == RTD_SMARTPOSTER_0
+                && mFile[(short)(type + 1)] == RTD_SMARTPOSTER_1;
+    }
+
+    private void error() {
+        ISOException.throwIt(ISO7816.SW_UNKNOWN);
+    }
+
+}
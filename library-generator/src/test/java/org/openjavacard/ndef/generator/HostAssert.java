@@ -0,0 +1,87 @@
+/*
+ * openjavacard-ndef: JavaCard applet implementing an NDEF tag
+ * Copyright (C) 2015-2018 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package org.openjavacard.ndef.generator;
+
+import javacard.framework.ISOException;
+
+import java.util.Arrays;
+
+/**
+ * \brief Minimal assertions for host tests
+ *
+ * The host tests have no dependencies besides the API shim,
+ * so they can run wherever the generator builds. A failed
+ * assertion throws, which fails the test target.
+ */
+final class HostAssert {
+
+    /** Code that is expected to throw */
+    interface Action {
+        void run();
+    }
+
+    private HostAssert() {
+    }
+
+    static void check(boolean condition, String what) {
+        if(!condition) {
+            throw new AssertionError(what);
+        }
+    }
+
+    static void checkEquals(int expected, int actual, String what) {
+        if(expected != actual) {
+            throw new AssertionError(what + ": expected " + expected + " but got " + actual);
+        }
+    }
+
+    static void checkEquals(byte[] expected, byte[] actual, String what) {
+        if(!Arrays.equals(expected, actual)) {
+            throw new AssertionError(what + ": expected " + hex(expected) + " but got " + hex(actual));
+        }
+    }
+
+    static void checkThrows(short sw, Action action, String what) {
+        try {
+            action.run();
+        } catch (ISOException e) {
+            checkEquals(sw & 0xFFFF, e.getReason() & 0xFFFF, what + " status");
+            return;
+        }
+        throw new AssertionError(what + ": no exception");
+    }
+
+    static byte[] bytes(int length, int seed) {
+        byte[] res = new byte[length];
+        for(int i = 0; i < length; i++) {
+            res[i] = (byte)(seed + i);
+        }
+        return res;
+    }
+
+    static String hex(byte[] data) {
+        StringBuilder sb = new StringBuilder();
+        for(byte b : data) {
+            sb.append(String.format("%02X", b & 0xFF));
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,417 @@
+/*
+ * openjavacard-ndef: JavaCard applet implementing an NDEF tag
+ * Copyright (C) 2015-2018 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package org.openjavacard.ndef.generator;
+
+import javacard.framework.ISO7816;
+import javacard.framework.Util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.openjavacard.ndef.generator.HostAssert.bytes;
+import static org.openjavacard.ndef.generator.HostAssert.check;
+import static org.openjavacard.ndef.generator.HostAssert.checkEquals;
+import static org.openjavacard.ndef.generator.HostAssert.checkThrows;
+
+/**
+ * \brief Host tests for NdefGenerator
+ *
+ * Every message is generated into a buffer and, for a range
+ * of window sizes, window by window. Both must produce the
+ * same NDEF file.
+ */
+public class NdefGeneratorTest implements NdefConstants {
+
+    /** Window sizes to check, including a single byte */
+    private static final int[] WINDOWS = {1, 2, 5, 59, 128, 255, 256, 1024};
+
+    private static final byte[] TEXT = "Hello".getBytes();
+    private static final byte[] URL = "example.com/tag".getBytes();
+    private static final byte[] MIME = "text/plain".getBytes();
+    private static final byte[] EXT = "example.com:t".getBytes();
+    private static final byte[] LONG = bytes(300, 0x20);
+
+    /** A message, built the same way in every pass */
+    interface Message {
+        void build(NdefGenerator gen, byte[] buf);
+    }
+
+    private static final Message EMPTY = (gen, buf) -> {
+    };
+
+    private static final Message SINGLE = (gen, buf) ->
+            gen.buildText(buf, TEXT, (short)0, (short)TEXT.length);
+
+    private static final Message MULTI = (gen, buf) -> {
+        gen.buildText(buf, TEXT, (short)0, (short)TEXT.length);
+        gen.buildURL(buf, ABBR_HTTPS, URL, (short)0, (short)URL.length);
+        gen.buildMedia(buf, MIME, (short)0, (byte)MIME.length, LONG, (short)0, (short)LONG.length);
+        gen.buildExternal(buf, EXT, (short)0, (byte)EXT.length, TEXT, (short)0, (short)TEXT.length);
+    };
+
+    private static final Message POSTER_SHORT = (gen, buf) -> {
+        gen.beginSmartPoster(buf);
+        gen.buildURL(buf, ABBR_HTTPS, URL, (short)0, (short)URL.length);
+        gen.buildText(buf, TEXT, (short)0, (short)TEXT.length);
+        gen.endSmartPoster(buf);
+    };
+
+    private static final Message POSTER_LONG = (gen, buf) -> {
+        gen.beginSmartPoster(buf);
+        gen.buildURL(buf, ABBR_HTTPS, URL, (short)0, (short)URL.length);
+        gen.buildText(buf, LONG, (short)0, (short)LONG.length);
+        gen.endSmartPoster(buf);
+    };
+
+    /** Short poster nested in a long poster */
+    private static final Message NESTED_OUTER_LONG = (gen, buf) -> {
+        gen.beginSmartPoster(buf);
+        gen.beginSmartPoster(buf);
+        gen.buildURL(buf, ABBR_HTTPS, URL, (short)0, (short)URL.length);
+        gen.endSmartPoster(buf);
+        gen.buildText(buf, LONG, (short)0, (short)LONG.length);
+        gen.endSmartPoster(buf);
+    };
+
+    /** Long poster nested in a long poster, followed by more records */
+    private static final Message NESTED_INNER_LONG = (gen, buf) -> {
+        gen.beginSmartPoster(buf);
+        gen.buildURL(buf, ABBR_HTTPS, URL, (short)0, (short)URL.length);
+        gen.beginSmartPoster(buf);
+        gen.buildText(buf, LONG, (short)0, (short)LONG.length);
+        gen.endSmartPoster(buf);
+        gen.endSmartPoster(buf);
+        gen.beginSmartPoster(buf);
+        gen.buildText(buf, TEXT, (short)0, (short)TEXT.length);
+        gen.endSmartPoster(buf);
+    };
+
+    private static final Message CHUNKED = (gen, buf) -> {
+        gen.beginChunked(buf, TNF_MEDIA, MIME, (short)0, (byte)MIME.length,
+                TEXT, (short)0, (short)TEXT.length);
+        gen.buildChunk(buf, LONG, (short)0, (short)LONG.length);
+        gen.endChunked(buf, null, (short)0, (short)0);
+        gen.buildText(buf, TEXT, (short)0, (short)TEXT.length);
+    };
+
+    private static final Message[] MESSAGES = {
+            EMPTY, SINGLE, MULTI, POSTER_SHORT, POSTER_LONG,
+            NESTED_OUTER_LONG, NESTED_INNER_LONG, CHUNKED,
+    };
+
+    public static void main(String[] args) {
+        testWindowsMatchBuffer();
+        testPosterFormat();
+        testNestedPosters();
+        testFlags();
+        testChunkFlags();
+        testEmpty();
+        testLayoutChange();
+        testNegativeLength();
+        testFileFull();
+        System.out.println("NdefGeneratorTest OK");
+    }
+
+    /** Concatenated windows equal the buffer output */
+    private static void testWindowsMatchBuffer() {
+        for(int i = 0; i < MESSAGES.length; i++) {
+            byte[] file = renderBuffer(MESSAGES[i]);
+            for(int win : WINDOWS) {
+                checkEquals(file, renderWindows(MESSAGES[i], win),
+                        "message " + i + " window " + win);
+            }
+        }
+    }
+
+    /** Smart Posters switch to the long format above 255 bytes */
+    private static void testPosterFormat() {
+        // poster payload is the text record: 7 bytes plus the text
+        for(int textLen = 246; textLen <= 251; textLen++) {
+            final byte[] text = bytes(textLen, 0x30);
+            Message msg = (gen, buf) -> {
+                gen.beginSmartPoster(buf);
+                gen.buildText(buf, text, (short)0, (short)text.length);
+                gen.endSmartPoster(buf);
+            };
+            byte[] file = renderBuffer(msg);
+            int payloadLen = 7 + textLen;
+            Record poster = records(file, 2, file.length).get(0);
+            checkEquals(payloadLen, poster.payloadLen, "poster length " + textLen);
+            checkEquals(payloadLen <= 0xFF ? 1 : 0, (poster.flags & FLAG_SHORT) != 0 ? 1 : 0,
+                    "poster format " + textLen);
+            checkEquals(file.length, poster.payload + payloadLen, "poster end " + textLen);
+            checkEquals(TNF_WELL_KNOWN, poster.flags & TNF_MASK, "poster tnf " + textLen);
+            checkEquals(RTD_SMARTPOSTER_0, file[poster.payload - 2], "poster type " + textLen);
+            checkEquals(RTD_SMARTPOSTER_1, file[poster.payload - 1], "poster type " + textLen);
+            // the nested text record follows directly
+            Record nested = records(file, poster.payload, poster.payload + payloadLen).get(0);
+            checkEquals(3 + textLen, nested.payloadLen, "text length " + textLen);
+            for(int win : WINDOWS) {
+                checkEquals(file, renderWindows(msg, win), "poster " + textLen + " window " + win);
+            }
+        }
+    }
+
+    /** Nested posters above and below 255 bytes */
+    private static void testNestedPosters() {
+        byte[] file = renderBuffer(NESTED_OUTER_LONG);
+        List<Record> top = records(file, 2, file.length);
+        checkEquals(1, top.size(), "outer long top");
+        Record outer = top.get(0);
+        check((outer.flags & FLAG_SHORT) == 0, "outer long format");
+        List<Record> level1 = records(file, outer.payload, outer.payload + outer.payloadLen);
+        checkEquals(2, level1.size(), "outer long level 1");
+        Record inner = level1.get(0);
+        check((inner.flags & FLAG_SHORT) != 0, "inner short format");
+        List<Record> level2 = records(file, inner.payload, inner.payload + inner.payloadLen);
+        checkEquals(1, level2.size(), "inner short level 2");
+        checkEquals(URL.length + 1, level2.get(0).payloadLen, "inner short uri");
+        checkEquals(3 + LONG.length, level1.get(1).payloadLen, "outer long text");
+
+        file = renderBuffer(NESTED_INNER_LONG);
+        top = records(file, 2, file.length);
+        checkEquals(2, top.size(), "inner long top");
+        outer = top.get(0);
+        check((outer.flags & FLAG_SHORT) == 0, "outer of inner long format");
+        check((top.get(1).flags & FLAG_SHORT) != 0, "second poster short format");
+        level1 = records(file, outer.payload, outer.payload + outer.payloadLen);
+        checkEquals(2, level1.size(), "inner long level 1");
+        inner = level1.get(1);
+        check((inner.flags & FLAG_SHORT) == 0, "inner long format");
+        level2 = records(file, inner.payload, inner.payload + inner.payloadLen);
+        checkEquals(1, level2.size(), "inner long level 2");
+        checkEquals(3 + LONG.length, level2.get(0).payloadLen, "inner long text");
+    }
+
+    /** MB on the first and ME on the last record of every message */
+    private static void testFlags() {
+        byte[] file = renderBuffer(SINGLE);
+        List<Record> top = records(file, 2, file.length);
+        checkEquals(1, top.size(), "single count");
+        checkEquals((FLAG_MB | FLAG_ME | FLAG_SHORT | TNF_WELL_KNOWN) & 0xFF, top.get(0).flags & 0xFF,
+                "single flags");
+
+        file = renderBuffer(MULTI);
+        top = records(file, 2, file.length);
+        checkEquals(4, top.size(), "multi count");
+        checkFlags(top, "multi");
+        checkEquals(TNF_MEDIA, top.get(2).flags & TNF_MASK, "media tnf");
+        check((top.get(2).flags & FLAG_SHORT) == 0, "media long format");
+        checkEquals(TNF_EXTERNAL, top.get(3).flags & TNF_MASK, "external tnf");
+
+        file = renderBuffer(NESTED_INNER_LONG);
+        top = records(file, 2, file.length);
+        checkFlags(top, "nested top");
+        for(Record poster : top) {
+            List<Record> nested = records(file, poster.payload, poster.payload + poster.payloadLen);
+            checkFlags(nested, "nested level 1");
+        }
+    }
+
+    /** CF on all chunks but the last, type only on the first */
+    private static void testChunkFlags() {
+        byte[] file = renderBuffer(CHUNKED);
+        List<Record> top = records(file, 2, file.length);
+        checkEquals(4, top.size(), "chunked count");
+        checkFlags(top, "chunked");
+        checkEquals((FLAG_MB | FLAG_CHUNKED | FLAG_SHORT | TNF_MEDIA) & 0xFF, top.get(0).flags & 0xFF,
+                "first chunk flags");
+        checkEquals(MIME.length, top.get(0).typeLen, "first chunk type");
+        checkEquals(FLAG_CHUNKED | TNF_UNCHANGED, top.get(1).flags & 0xFF, "middle chunk flags");
+        checkEquals(0, top.get(1).typeLen, "middle chunk type");
+        checkEquals(LONG.length, top.get(1).payloadLen, "middle chunk length");
+        checkEquals(FLAG_SHORT | TNF_UNCHANGED, top.get(2).flags & 0xFF, "last chunk flags");
+        checkEquals(0, top.get(2).payloadLen, "last chunk length");
+        check((top.get(3).flags & FLAG_CHUNKED) == 0, "record after chunks");
+    }
+
+    /** Empty messages get an empty record */
+    private static void testEmpty() {
+        checkEquals(new byte[]{0, 3, (byte)(FLAG_MB | FLAG_ME | FLAG_SHORT | TNF_EMPTY), 0, 0},
+                renderBuffer(EMPTY), "empty");
+    }
+
+    /** Windows must not change the layout */
+    private static void testLayoutChange() {
+        final NdefGenerator gen = new NdefGenerator();
+        gen.beginMeasure();
+        SINGLE.build(gen, null);
+        gen.finish(null);
+        final byte[] win = new byte[64];
+        gen.beginWindow(win, (short)0, (short)0, (short)win.length);
+        MULTI.build(gen, win);
+        checkThrows(ISO7816.SW_UNKNOWN, () -> gen.finish(win), "layout change");
+    }
+
+    /** Negative lengths are rejected */
+    private static void testNegativeLength() {
+        final NdefGenerator gen = new NdefGenerator();
+        final byte[] buf = new byte[64];
+        final byte[] lang = {0x64, 0x65};
+        checkThrows(ISO7816.SW_UNKNOWN, () -> {
+            gen.begin(buf, (short)0, (short)buf.length);
+            gen.buildText(buf, TEXT, (short)0, (short)-1);
+        }, "text");
+        checkThrows(ISO7816.SW_UNKNOWN, () -> {
+            gen.begin(buf, (short)0, (short)buf.length);
+            gen.buildText(buf, lang, (short)0, (byte)lang.length, TEXT, (short)0, (short)-2);
+        }, "text with language");
+        checkThrows(ISO7816.SW_UNKNOWN, () -> {
+            gen.begin(buf, (short)0, (short)buf.length);
+            gen.buildText(buf, TEXT, (short)0, (short)0x7FFF);
+        }, "text overflow");
+        checkThrows(ISO7816.SW_UNKNOWN, () -> {
+            gen.begin(buf, (short)0, (short)buf.length);
+            gen.buildURL(buf, ABBR_HTTPS, URL, (short)0, (short)-1);
+        }, "uri");
+        checkThrows(ISO7816.SW_UNKNOWN, () -> {
+            gen.begin(buf, (short)0, (short)buf.length);
+            gen.buildURL(buf, ABBR_HTTPS, URL, (short)0, (short)0x7FFF);
+        }, "uri overflow");
+        checkThrows(ISO7816.SW_UNKNOWN, () -> {
+            gen.begin(buf, (short)0, (short)buf.length);
+            gen.buildMedia(buf, MIME, (short)0, (byte)MIME.length, TEXT, (short)0, (short)-1);
+        }, "media");
+        checkThrows(ISO7816.SW_UNKNOWN, () -> {
+            gen.begin(buf, (short)0, (short)buf.length);
+            gen.beginChunked(buf, TNF_MEDIA, MIME, (short)0, (byte)MIME.length,
+                    TEXT, (short)0, (short)-1);
+        }, "first chunk");
+        checkThrows(ISO7816.SW_UNKNOWN, () -> {
+            gen.begin(buf, (short)0, (short)buf.length);
+            gen.beginChunked(buf, TNF_MEDIA, MIME, (short)0, (byte)MIME.length,
+                    TEXT, (short)0, (short)0);
+            gen.buildChunk(buf, TEXT, (short)0, (short)-1);
+        }, "middle chunk");
+        // the generator is still usable
+        gen.begin(buf, (short)0, (short)buf.length);
+        SINGLE.build(gen, buf);
+        checkEquals(4 + 3 + TEXT.length, gen.finish(buf), "after errors");
+    }
+
+    /** Records must fit the buffer */
+    private static void testFileFull() {
+        final NdefGenerator gen = new NdefGenerator();
+        final byte[] buf = new byte[64];
+        checkThrows(ISO7816.SW_FILE_FULL, () -> {
+            gen.begin(buf, (short)0, (short)buf.length);
+            gen.buildText(buf, LONG, (short)0, (short)LONG.length);
+        }, "full");
+    }
+
+    /**
+     * Generate a message into a buffer
+     *
+     * @return the NDEF file, including NLEN
+     */
+    private static byte[] renderBuffer(Message msg) {
+        NdefGenerator gen = new NdefGenerator();
+        byte[] buf = new byte[1024];
+        gen.begin(buf, (short)2, (short)(buf.length - 2));
+        msg.build(gen, buf);
+        short len = gen.finish(buf);
+        Util.setShort(buf, (short)0, len);
+        return Arrays.copyOf(buf, 2 + len);
+    }
+
+    /**
+     * Generate a message window by window
+     *
+     * Windows are placed at an offset into a reused
+     * buffer to check the mapping of positions.
+     *
+     * @return the NDEF file, including NLEN
+     */
+    private static byte[] renderWindows(Message msg, int winLen) {
+        NdefGenerator gen = new NdefGenerator();
+        gen.beginMeasure();
+        msg.build(gen, null);
+        short len = gen.finish(null);
+        byte[] file = new byte[2 + len];
+        byte[] win = new byte[3 + winLen];
+        for(int fileOff = 0; fileOff < file.length; fileOff += winLen) {
+            Arrays.fill(win, (byte)0xEE);
+            gen.beginWindow(win, (short)3, (short)fileOff, (short)winLen);
+            msg.build(gen, win);
+            int n = gen.finish(win);
+            checkEquals(Math.min(winLen, file.length - fileOff), n, "window at " + fileOff);
+            System.arraycopy(win, 3, file, fileOff, n);
+        }
+        return file;
+    }
+
+    /** Header fields of a record */
+    private static final class Record {
+        byte flags;
+        int typeLen;
+        int payload;
+        int payloadLen;
+    }
+
+    /**
+     * Parse the records of one message level
+     *
+     * @param file to parse
+     * @param pos of the first record
+     * @param end of the message
+     * @return records on this level
+     */
+    private static List<Record> records(byte[] file, int pos, int end) {
+        List<Record> res = new ArrayList<>();
+        while(pos < end) {
+            Record rec = new Record();
+            rec.flags = file[pos];
+            rec.typeLen = file[pos + 1] & 0xFF;
+            int hdr;
+            if((rec.flags & FLAG_SHORT) != 0) {
+                rec.payloadLen = file[pos + 2] & 0xFF;
+                hdr = 3;
+            } else {
+                checkEquals(0, Util.getShort(file, (short)(pos + 2)), "long length");
+                rec.payloadLen = Util.getShort(file, (short)(pos + 4)) & 0xFFFF;
+                hdr = 6;
+            }
+            int idLen = 0;
+            if((rec.flags & FLAG_IL) != 0) {
+                idLen = file[pos + hdr] & 0xFF;
+                hdr++;
+            }
+            rec.payload = pos + hdr + rec.typeLen + idLen;
+            pos = rec.payload + rec.payloadLen;
+            res.add(rec);
+        }
+        checkEquals(end, pos, "message end");
+        return res;
+    }
+
+    /**
+     * Check MB and ME of one message level
+     */
+    private static void checkFlags(List<Record> recs, String what) {
+        for(int i = 0; i < recs.size(); i++) {
+            byte flags = recs.get(i).flags;
+            checkEquals(i == 0 ? 1 : 0, (flags & FLAG_MB) != 0 ? 1 : 0, what + " MB " + i);
+            checkEquals(i == recs.size() - 1 ? 1 : 0, (flags & FLAG_ME) != 0 ? 1 : 0,
+                    what + " ME " + i);
+        }
+    }
+
+}
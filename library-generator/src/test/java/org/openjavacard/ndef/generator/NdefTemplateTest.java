@@ -0,0 +1,169 @@
+/*
+ * openjavacard-ndef: JavaCard applet implementing an NDEF tag
+ * Copyright (C) 2015-2018 Ingo Albrecht <copyright@promovicz.org>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301  USA
+ */
+
+package org.openjavacard.ndef.generator;
+
+import javacard.framework.ISO7816;
+import javacard.framework.Util;
+
+import java.util.Arrays;
+
+import static org.openjavacard.ndef.generator.HostAssert.checkEquals;
+import static org.openjavacard.ndef.generator.HostAssert.checkThrows;
+
+/**
+ * \brief Host tests for NdefTemplate
+ *
+ * Templates are generated with NdefGenerator and patched,
+ * after which only the slots may have changed. Malformed
+ * files must be rejected with an ISOException.
+ */
+public class NdefTemplateTest implements NdefConstants {
+
+    private static final byte[] URL = "example.com/tag?id=XXXXXXXX".getBytes();
+    private static final byte[] TEXT = "Count: 0000".getBytes();
+    private static final byte[] MIME = "application/octet-stream".getBytes();
+    private static final byte[] DATA = new byte[300];
+
+    /** Record indices in the template */
+    private static final short REC_POSTER = 0;
+    private static final short REC_URL = 1;
+    private static final short REC_TEXT = 2;
+    private static final short REC_MEDIA = 3;
+
+    public static void main(String[] args) {
+        testPatch();
+        testSlotErrors();
+        testMalformed();
+        System.out.println("NdefTemplateTest OK");
+    }
+
+    /** Patching changes only the slot */
+    private static void testPatch() {
+        byte[] file = generate();
+        byte[] orig = file.clone();
+        NdefTemplate tpl = new NdefTemplate(file, (byte)3);
+        // skip the prefix byte of the URI and status and language of the text
+        tpl.defineSlot((byte)0, REC_URL, (short)(1 + 19), (short)8);
+        tpl.defineSlot((byte)1, REC_TEXT, (short)(3 + 7), (short)4);
+        tpl.defineSlot((byte)2, REC_MEDIA, (short)298, (short)2);
+        checkEquals(8, tpl.getSlotWidth((byte)0), "url width");
+
+        byte[] id = "12345678".getBytes();
+        byte[] count = "0042".getBytes();
+        byte[] tail = {(byte)0xCA, (byte)0xFE};
+        tpl.patch((byte)0, id, (short)0);
+        tpl.patch((byte)1, count, (short)0);
+        tpl.patch((byte)2, tail, (short)0);
+
+        byte[] expected = orig.clone();
+        System.arraycopy(id, 0, expected, indexOf(orig, "XXXXXXXX".getBytes()), id.length);
+        System.arraycopy(count, 0, expected, indexOf(orig, "0000".getBytes()), count.length);
+        System.arraycopy(tail, 0, expected, orig.length - 2, tail.length);
+        checkEquals(expected, file, "patched");
+        checkEquals(indexOf(orig, "XXXXXXXX".getBytes()), tpl.getSlotOffset((byte)0), "url offset");
+
+        // patching again replaces the previous contents
+        tpl.patch((byte)0, "ABCDEFGH".getBytes(), (short)0);
+        System.arraycopy("ABCDEFGH".getBytes(), 0, expected, tpl.getSlotOffset((byte)0), 8);
+        checkEquals(expected, file, "patched twice");
+        checkEquals(file.length - 2, Util.getShort(file, (short)0), "nlen");
+    }
+
+    /** Invalid slots and slot definitions are rejected */
+    private static void testSlotErrors() {
+        final NdefTemplate tpl = new NdefTemplate(generate(), (byte)2);
+        final byte[] src = new byte[16];
+        checkThrows(ISO7816.SW_UNKNOWN, () -> tpl.patch((byte)0, src, (short)0), "undefined");
+        checkThrows(ISO7816.SW_UNKNOWN,
+                () -> tpl.defineSlot((byte)2, REC_URL, (short)0, (short)1), "slot too large");
+        checkThrows(ISO7816.SW_UNKNOWN,
+                () -> tpl.defineSlot((byte)-1, REC_URL, (short)0, (short)1), "negative slot");
+        checkThrows(ISO7816.SW_UNKNOWN, () -> tpl.getSlotOffset((byte)2), "offset of slot too large");
+        checkThrows(ISO7816.SW_UNKNOWN,
+                () -> tpl.defineSlot((byte)0, (short)4, (short)0, (short)1), "record past end");
+        checkThrows(ISO7816.SW_UNKNOWN,
+                () -> tpl.defineSlot((byte)0, (short)-1, (short)0, (short)1), "negative record");
+        checkThrows(ISO7816.SW_UNKNOWN,
+                () -> tpl.defineSlot((byte)0, REC_URL, (short)URL.length, (short)2), "past payload");
+        checkThrows(ISO7816.SW_UNKNOWN,
+                () -> tpl.defineSlot((byte)0, REC_URL, (short)0, (short)0), "empty slot");
+        // the poster payload is a valid slot
+        tpl.defineSlot((byte)0, REC_POSTER, (short)0, (short)1);
+    }
+
+    /** Malformed files are rejected without reading past them */
+    private static void testMalformed() {
+        byte[] valid = generate();
+        // NLEN beyond the file
+        byte[] file = valid.clone();
+        Util.setShort(file, (short)0, (short)(valid.length - 1));
+        checkMalformed(file, "nlen too large");
+        // truncated file
+        checkMalformed(Arrays.copyOf(valid, 1), "no nlen");
+        checkMalformed(new byte[]{0, 2, (byte)0xD1, 0x01}, "short header");
+        checkMalformed(new byte[]{0, 4, (byte)0xC1, 0x01, 0, 0}, "long header");
+        checkMalformed(new byte[]{0, 4, (byte)0xD9, 0x01, 0x01, 0x00}, "id length");
+        // type and payload beyond the message
+        checkMalformed(new byte[]{0, 4, (byte)0xD1, 0x05, 0x00, 0x55}, "type length");
+        checkMalformed(new byte[]{0, 4, (byte)0xD1, 0x01, 0x10, 0x55}, "payload length");
+        checkMalformed(new byte[]{0, 7, (byte)0xC1, 0x01, 0x00, 0x01, 0x00, 0x00, 0x55},
+                "long payload length");
+        checkMalformed(new byte[]{0, 7, (byte)0xC1, 0x01, 0x7F, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x55},
+                "negative payload length");
+        // record past the end of a poster payload at the end of the message
+        checkMalformed(new byte[]{0, 5, (byte)0xD1, 0x02, 0x00, 0x53, 0x70}, "empty poster");
+    }
+
+    private static void checkMalformed(final byte[] file, String what) {
+        final NdefTemplate tpl = new NdefTemplate(file, (byte)1);
+        checkThrows(ISO7816.SW_UNKNOWN,
+                () -> tpl.defineSlot((byte)0, (short)1, (short)0, (short)1), what);
+    }
+
+    /**
+     * Generate the template used by the tests
+     *
+     * A Smart Poster with URI and text, followed by
+     * a media record in long format.
+     */
+    private static byte[] generate() {
+        NdefGenerator gen = new NdefGenerator();
+        byte[] buf = new byte[512];
+        gen.begin(buf, (short)2, (short)(buf.length - 2));
+        gen.beginSmartPoster(buf);
+        gen.buildURL(buf, ABBR_HTTPS, URL, (short)0, (short)URL.length);
+        gen.buildText(buf, TEXT, (short)0, (short)TEXT.length);
+        gen.endSmartPoster(buf);
+        gen.buildMedia(buf, MIME, (short)0, (byte)MIME.length, DATA, (short)0, (short)DATA.length);
+        short len = gen.finish(buf);
+        Util.setShort(buf, (short)0, len);
+        return Arrays.copyOf(buf, 2 + len);
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        for(int i = 0; i + pattern.length <= data.length; i++) {
+            if(Arrays.equals(Arrays.copyOfRange(data, i, i + pattern.length), pattern)) {
+                return i;
+            }
+        }
+        throw new AssertionError("pattern not found");
+    }
+
+}